@@ -0,0 +1,320 @@
+package com.eulogix.kettle.steps.binary_file_output;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.output.CountingOutputStream;
+
+/**
+ * Streams all the rows of a step copy into rolling ZIP or TAR containers named
+ * {base}-00001.zip, {base}-00002.zip... A new container is started when adding an
+ * entry would take the current one past the maximum size. Each container ends with
+ * a MANIFEST.tsv entry listing path, size and CRC32 of every entry it holds.
+ * 
+ * A container left with a partial entry by a failed write is closed as it is,
+ * renamed {container}.broken, and the next entry starts a new container.
+ */
+public class BinaryArchiveWriter {
+
+	public static final String FORMAT_ZIP = "zip";
+	public static final String FORMAT_TAR = "tar";
+
+	public static final String MANIFEST_ENTRY = "MANIFEST.tsv";
+
+	private static final int TAR_BLOCK = 512;
+	private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+	private String basePath;
+	private String format;
+	private long maxBytes;
+	private Set<String> storedExtensions = new HashSet<String>();
+
+	private int containerIndex;
+	private File containerFile;
+	private FileOutputStream file;
+	private CountingOutputStream counter;
+	private OutputStream out;
+	private ZipOutputStream zip;
+	private StringBuilder manifest;
+	private Set<String> entryPaths = new HashSet<String>();
+
+	/**
+	 * when set, each container is forced to disk when it is completed
+	 */
+	public boolean syncOnClose;
+
+	/**
+	 * @param basePath			path of the containers without index and extension
+	 * @param format			zip or tar
+	 * @param maxBytes			rollover size, 0 for a single container
+	 * @param storedExtensions	comma separated extensions stored without compression in ZIP containers
+	 */
+	public BinaryArchiveWriter(String basePath, String format, long maxBytes, String storedExtensions) {
+		this.basePath = basePath;
+		this.format = format;
+		this.maxBytes = maxBytes;
+		for (String extension : storedExtensions.split(",")) {
+			if (!extension.trim().isEmpty())
+				this.storedExtensions.add(extension.trim().toLowerCase(Locale.ROOT));
+		}
+	}
+
+	/**
+	 * adds an entry to the current container, rolling over if needed
+	 * @param entryPath
+	 * @param payload
+	 * @param digests updated with the bytes of the entry
+	 * @return the path of the container holding the entry
+	 * @throws IOException
+	 */
+	public synchronized String add(String entryPath, BinaryPayload payload, MessageDigest... digests) throws IOException {
+		entryPath = normalize(entryPath);
+		long size = payload.size();
+
+		// checked before writing anything, so that they fail the row but not the container
+		if (MANIFEST_ENTRY.equals(entryPath))
+			throw new IOException("Entry " + entryPath + " is reserved for the manifest of the container");
+		if (!FORMAT_ZIP.equals(format) && size > 077777777777L)
+			throw new IOException("Entry " + entryPath + " is too big for a tar container");
+
+		if (out != null && maxBytes > 0 && counter.getByteCount() > 0 && counter.getByteCount() + size > maxBytes) {
+			closeContainer();
+		}
+		if (out == null) {
+			openContainer();
+		}
+		// a zip cannot hold the same path twice, in a tar the last one wins
+		if (zip != null && entryPaths.contains(entryPath))
+			throw new IOException("Entry " + entryPath + " is already in " + containerFile);
+
+		long crc;
+		if (zip != null) {
+			ZipEntry entry = new ZipEntry(entryPath);
+			if (isStored(entryPath)) {
+				// stored entries need the checksum before the data
+				entry.setMethod(ZipEntry.STORED);
+				entry.setSize(size);
+				entry.setCompressedSize(size);
+				entry.setCrc(payload.crc32());
+			}
+			try {
+				zip.putNextEntry(entry);
+				crc = copy(payload, size, zip, digests);
+				zip.closeEntry();
+			} catch (IOException | RuntimeException e) {
+				abortContainer();
+				throw e;
+			}
+		} else {
+			try {
+				crc = writeTarEntry(entryPath, payload, size, digests);
+			} catch (IOException | RuntimeException e) {
+				abortContainer();
+				throw e;
+			}
+		}
+
+		entryPaths.add(entryPath);
+		manifest.append(entryPath).append('\t').append(size).append('\t').append(Long.toHexString(crc)).append('\n');
+		return containerFile.getPath();
+	}
+
+	public synchronized void close() throws IOException {
+		if (out != null)
+			closeContainer();
+	}
+
+	private void openContainer() throws IOException {
+		containerFile = new File(String.format("%s-%05d.%s", basePath, ++containerIndex, format));
+		File parent = containerFile.getAbsoluteFile().getParentFile();
+		if (!parent.isDirectory() && !parent.mkdirs())
+			throw new IOException("Unable to create folder " + parent);
+
+		// counts above the buffer, so the size is known without flushing
+		counter = new CountingOutputStream(new BufferedOutputStream(file = new FileOutputStream(containerFile), 64 * 1024));
+		out = counter;
+		if (FORMAT_ZIP.equals(format))
+			zip = new ZipOutputStream(out);
+		manifest = new StringBuilder();
+		entryPaths.clear();
+	}
+
+	private void closeContainer() throws IOException {
+		try {
+			byte[] manifestBytes = manifest.toString().getBytes(StandardCharsets.UTF_8);
+			if (zip != null) {
+				zip.putNextEntry(new ZipEntry(MANIFEST_ENTRY));
+				zip.write(manifestBytes);
+				zip.closeEntry();
+				zip.finish();
+			} else {
+				writeTarEntry(MANIFEST_ENTRY, BinaryPayload.of(manifestBytes), manifestBytes.length);
+				// end of archive: two zero blocks
+				out.write(new byte[2 * TAR_BLOCK]);
+			}
+			out.flush();
+			if (syncOnClose)
+				file.getFD().sync();
+		} catch (IOException | RuntimeException e) {
+			abortContainer();
+			throw e;
+		}
+		try {
+			out.close();
+		} finally {
+			out = null;
+			zip = null;
+		}
+	}
+
+	/**
+	 * gives up on the current container without writing anything more to it, so that
+	 * no reader takes its partial entry for a complete one
+	 */
+	private void abortContainer() {
+		try {
+			file.close();
+		} catch (IOException e) {
+			// the failure that led here is the one reported
+		}
+		out = null;
+		zip = null;
+		File broken = new File(containerFile.getPath() + ".broken");
+		if (!containerFile.renameTo(broken))
+			containerFile.delete();
+	}
+
+	private boolean isStored(String entryPath) {
+		int dot = entryPath.lastIndexOf('.');
+		return dot >= 0 && storedExtensions.contains(entryPath.substring(dot + 1).toLowerCase(Locale.ROOT));
+	}
+
+	/**
+	 * entries are relative, with forward slashes
+	 */
+	private String normalize(String entryPath) {
+		String path = entryPath.replace('\\', '/');
+		if (path.length() > 1 && path.charAt(1) == ':')
+			path = path.substring(2);
+		while (path.startsWith("/") || path.startsWith("./"))
+			path = path.substring(path.charAt(0) == '/' ? 1 : 2);
+		return path;
+	}
+
+	/**
+	 * writes a ustar entry, using a GNU long name entry for paths that do not fit the header
+	 */
+	private long writeTarEntry(String entryPath, BinaryPayload payload, long size, MessageDigest... digests) throws IOException {
+		byte[] name = entryPath.getBytes(StandardCharsets.UTF_8);
+		String prefix = "";
+
+		if (name.length > 100) {
+			int split = splitTarName(entryPath);
+			if (split > 0) {
+				prefix = entryPath.substring(0, split);
+				entryPath = entryPath.substring(split + 1);
+			} else {
+				byte[] longName = new byte[name.length + 1];
+				System.arraycopy(name, 0, longName, 0, name.length);
+				writeTarHeader("././@LongLink", "", longName.length, 'L');
+				out.write(longName);
+				writeTarPadding(longName.length);
+				// the name field keeps its first 100 bytes, readers take the long name
+			}
+		}
+
+		writeTarHeader(entryPath, prefix, size, '0');
+		long crc = copy(payload, size, out, digests);
+		writeTarPadding(size);
+		return crc;
+	}
+
+	private int splitTarName(String entryPath) {
+		for (int i = entryPath.indexOf('/'); i > 0; i = entryPath.indexOf('/', i + 1)) {
+			if (entryPath.substring(0, i).getBytes(StandardCharsets.UTF_8).length <= 155
+					&& entryPath.substring(i + 1).getBytes(StandardCharsets.UTF_8).length <= 100)
+				return i;
+		}
+		return -1;
+	}
+
+	private void writeTarHeader(String name, String prefix, long size, char type) throws IOException {
+		byte[] header = new byte[TAR_BLOCK];
+		putTarField(header, 0, 100, name.getBytes(StandardCharsets.UTF_8));
+		putTarOctal(header, 100, 8, 0644);
+		putTarOctal(header, 108, 8, 0);
+		putTarOctal(header, 116, 8, 0);
+		putTarOctal(header, 124, 12, size);
+		putTarOctal(header, 136, 12, System.currentTimeMillis() / 1000);
+		header[156] = (byte) type;
+		putTarField(header, 257, 6, "ustar".getBytes(StandardCharsets.US_ASCII));
+		putTarField(header, 263, 2, "00".getBytes(StandardCharsets.US_ASCII));
+		putTarField(header, 345, 155, prefix.getBytes(StandardCharsets.UTF_8));
+
+		// the checksum is computed with its own field filled with spaces
+		for (int i = 148; i < 156; i++)
+			header[i] = ' ';
+		long checksum = 0;
+		for (byte b : header)
+			checksum += b & 0xff;
+		putTarOctal(header, 148, 7, checksum);
+
+		out.write(header);
+	}
+
+	private void writeTarPadding(long size) throws IOException {
+		int padding = (int) ((TAR_BLOCK - size % TAR_BLOCK) % TAR_BLOCK);
+		if (padding > 0)
+			out.write(new byte[padding]);
+	}
+
+	/**
+	 * streams the payload into the container
+	 * @return the CRC32 of the bytes copied
+	 */
+	private long copy(BinaryPayload payload, long size, OutputStream target, MessageDigest[] digests) throws IOException {
+		CheckedInputStream in = new CheckedInputStream(payload.openStream(), new CRC32());
+		try {
+			byte[] buffer = new byte[COPY_BUFFER_SIZE];
+			long copied = 0;
+			int read;
+			while ((read = in.read(buffer)) > 0) {
+				target.write(buffer, 0, read);
+				BinaryPayload.update(digests, buffer, 0, read);
+				copied += read;
+			}
+			// the size is already in the headers
+			if (copied != size)
+				throw new IOException("Content changed size while being archived");
+			return in.getChecksum().getValue();
+		} finally {
+			in.close();
+		}
+	}
+
+	private void putTarField(byte[] header, int offset, int length, byte[] value) {
+		System.arraycopy(value, 0, header, offset, Math.min(length, value.length));
+	}
+
+	/**
+	 * zero padded octal number followed by a NUL
+	 */
+	private void putTarOctal(byte[] header, int offset, int length, long value) {
+		String octal = Long.toOctalString(value);
+		while (octal.length() < length - 1)
+			octal = "0" + octal;
+		putTarField(header, offset, length - 1, octal.getBytes(StandardCharsets.US_ASCII));
+	}
+}
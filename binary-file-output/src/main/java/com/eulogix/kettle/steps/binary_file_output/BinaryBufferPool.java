@@ -0,0 +1,42 @@
+package com.eulogix.kettle.steps.binary_file_output;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Direct buffers reused across writes. Writing a heap array to a channel makes
+ * the JDK copy it into a temporary direct buffer as big as the array, cached per
+ * thread; large payloads are instead copied through these fixed size buffers.
+ */
+public class BinaryBufferPool {
+
+	private int bufferSize;
+	private BlockingQueue<ByteBuffer> buffers;
+
+	/**
+	 * @param bufferSize	size of each direct buffer
+	 * @param maxBuffers	buffers kept for reuse, usually one per writer thread
+	 */
+	public BinaryBufferPool(int bufferSize, int maxBuffers) {
+		this.bufferSize = bufferSize;
+		this.buffers = new ArrayBlockingQueue<ByteBuffer>(maxBuffers);
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = buffers.poll();
+		return buffer != null ? buffer : ByteBuffer.allocateDirect(bufferSize);
+	}
+
+	/**
+	 * buffers beyond the pool capacity are left to the garbage collector
+	 */
+	public void release(ByteBuffer buffer) {
+		buffer.clear();
+		buffers.offer(buffer);
+	}
+}
@@ -0,0 +1,78 @@
+package com.eulogix.kettle.steps.binary_file_output;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Digest of the bytes written for each row, in hex, with the algorithm chosen in the
+ * checksum setting. It is computed on the final bytes, after compression, so that it
+ * matches the file on disk.
+ */
+public class BinaryChecksum {
+
+	public static final String NONE = "none";
+	public static final String CRC32C = "crc32c";
+	public static final String MD5 = "md5";
+	public static final String SHA256 = "sha256";
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+	private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+	private String algorithm;
+
+	public BinaryChecksum(String algorithm) {
+		this.algorithm = algorithm;
+	}
+
+	public String compute(BinaryPayload payload) throws IOException {
+		return toHex(payload.digest(newDigest()));
+	}
+
+	/**
+	 * reads back what has been written to the channel, from its start
+	 * @param channel
+	 * @return
+	 * @throws IOException
+	 */
+	public String compute(FileChannel channel) throws IOException {
+		MessageDigest digest = newDigest();
+		ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+		long position = 0;
+		int read;
+		while ((read = channel.read(buffer, position)) > 0) {
+			digest.update(buffer.array(), 0, read);
+			position += read;
+			buffer.clear();
+		}
+		return toHex(digest.digest());
+	}
+
+	/**
+	 * a fresh digest of the chosen algorithm, to be updated while the bytes are written
+	 */
+	MessageDigest newDigest() {
+		try {
+			switch (algorithm) {
+				case CRC32C: return new Crc32cDigest();
+				case MD5: return MessageDigest.getInstance("MD5");
+				case SHA256: return MessageDigest.getInstance("SHA-256");
+				default: throw new IllegalArgumentException("Unknown checksum " + algorithm);
+			}
+		} catch (NoSuchAlgorithmException e) {
+			// every JVM is required to provide MD5 and SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	static String toHex(byte[] digest) {
+		char[] hex = new char[digest.length * 2];
+		for (int i = 0; i < digest.length; i++) {
+			hex[i * 2] = HEX[(digest[i] >> 4) & 0xf];
+			hex[i * 2 + 1] = HEX[digest[i] & 0xf];
+		}
+		return new String(hex);
+	}
+}
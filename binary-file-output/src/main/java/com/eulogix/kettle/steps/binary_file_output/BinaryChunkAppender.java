@@ -0,0 +1,176 @@
+package com.eulogix.kettle.steps.binary_file_output;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reassembles files delivered as ordered chunks over many rows: each row is appended
+ * to its target. The first chunk of a target in a run (or chunk 0, when chunk
+ * indexes are given) truncates it, so re-runs do not append to the previous output.
+ * 
+ * The most recently used files are kept open in an LRU cache, so consecutive chunks
+ * do not pay an open and a close each; the least recently used is closed when the
+ * cache is full, and reopened if more chunks come for it.
+ * 
+ * A chunk flagged as the last one closes its target and forgets it; without the flag
+ * the position of every target is kept until the end of the run. A chunk that cannot
+ * be written, or comes out of order, deletes the partial target and fails the rest of
+ * its chunks up to the last one.
+ */
+public class BinaryChunkAppender {
+
+	private int maxOpenFiles;
+	private boolean forceChunks;
+	private boolean forceOnClose;
+
+	private LinkedHashMap<String, FileChannel> openFiles;
+
+	/**
+	 * next expected chunk of every target being assembled
+	 */
+	private Map<String, Long> nextChunks = new HashMap<String, Long>();
+
+	/**
+	 * targets deleted after a failed chunk, until their last chunk
+	 */
+	private Set<String> failedTargets = new HashSet<String>();
+
+	/**
+	 * @param maxOpenFiles	files kept open at the same time
+	 * @param durability	file forces every chunk once appended, group forces files when they are closed
+	 */
+	public BinaryChunkAppender(int maxOpenFiles, String durability) {
+		this.maxOpenFiles = Math.max(1, maxOpenFiles);
+		this.forceChunks = BinaryFileWriter.DURABILITY_FILE.equals(durability);
+		this.forceOnClose = BinaryFileWriter.DURABILITY_GROUP.equals(durability);
+		this.openFiles = new LinkedHashMap<String, FileChannel>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<String, FileChannel> eldest) {
+				if (size() <= BinaryChunkAppender.this.maxOpenFiles)
+					return false;
+				try {
+					closeChannel(eldest.getValue());
+				} catch (IOException e) {
+					// the chunks already appended may not be on disk: the rest of that file fails
+					discard(eldest.getKey());
+				}
+				return true;
+			}
+		};
+	}
+
+	/**
+	 * @param target
+	 * @param payload
+	 * @param chunkIndex	position of the chunk in the file, null to append in row order
+	 * @param lastChunk		true if no more chunks will come for the target
+	 * @param bufferPool
+	 * @param digests		updated with the bytes of the chunk
+	 * @throws IOException
+	 */
+	public synchronized void append(File target, BinaryPayload payload, Long chunkIndex, boolean lastChunk, BinaryBufferPool bufferPool, MessageDigest... digests) throws IOException {
+		String key = target.getPath();
+		try {
+			if (failedTargets.contains(key))
+				throw new IOException("An earlier chunk of " + target + " failed");
+			write(target, key, payload, chunkIndex, bufferPool, digests);
+			if (lastChunk) {
+				FileChannel channel = openFiles.remove(key);
+				if (channel != null)
+					closeChannel(channel);
+			}
+		} catch (IOException e) {
+			fail(key);
+			throw e;
+		} finally {
+			// the target is complete, or deleted: nothing to remember about it
+			if (lastChunk) {
+				failedTargets.remove(key);
+				nextChunks.remove(key);
+			}
+		}
+	}
+
+	private void write(File target, String key, BinaryPayload payload, Long chunkIndex, BinaryBufferPool bufferPool, MessageDigest[] digests) throws IOException {
+		Long expected = nextChunks.get(key);
+
+		if (chunkIndex != null && chunkIndex != (expected == null ? 0 : expected))
+			throw new IOException("Chunk " + chunkIndex + " of " + target + " is out of order, expected " + (expected == null ? 0 : expected));
+
+		FileChannel channel = openFiles.get(key);
+		if (channel == null) {
+			if (expected == null) {
+				channel = FileChannel.open(target.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			} else {
+				// reopened after eviction; not APPEND, which would prevent transferTo() into it
+				channel = FileChannel.open(target.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+				channel.position(channel.size());
+			}
+			openFiles.put(key, channel);
+		}
+
+		payload.writeTo(channel, bufferPool, digests);
+		if (forceChunks)
+			channel.force(true);
+		nextChunks.put(key, (expected == null ? 0 : expected) + 1);
+	}
+
+	/**
+	 * deletes the partial target, so that a broken file is not taken for a complete one
+	 */
+	private void fail(String key) {
+		FileChannel channel = openFiles.remove(key);
+		try {
+			if (channel != null)
+				channel.close();
+		} catch (IOException e) {
+			// the file is deleted anyway
+		}
+		discard(key);
+	}
+
+	private void discard(String key) {
+		failedTargets.add(key);
+		nextChunks.remove(key);
+		new File(key).delete();
+	}
+
+	/**
+	 * closes all the open files
+	 * @throws IOException
+	 */
+	public synchronized void close() throws IOException {
+		List<FileChannel> channels = new ArrayList<FileChannel>(openFiles.values());
+		openFiles.clear();
+		IOException error = null;
+		for (FileChannel channel : channels) {
+			try {
+				closeChannel(channel);
+			} catch (IOException e) {
+				error = e;
+			}
+		}
+		if (error != null)
+			throw error;
+	}
+
+	private void closeChannel(FileChannel channel) throws IOException {
+		try {
+			if (forceOnClose)
+				channel.force(true);
+		} finally {
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,261 @@
+package com.eulogix.kettle.steps.binary_file_output;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses payloads while they are written, producing standard gzip files or raw
+ * deflate streams.
+ * 
+ * As in pigz, the input is split in blocks compressed independently, each primed
+ * with the last 32K of the previous block as dictionary and ended with a sync flush
+ * so that the compressed blocks can simply be concatenated. Blocks are compressed on
+ * a pool of threads when there is more than one, the result is the same either way.
+ * 
+ * The compressed output is kept in memory up to SPILL_SIZE, larger outputs go to a
+ * temporary file that is deleted once the payload has been written.
+ */
+public class BinaryCompressor {
+
+	public static final String FORMAT_NONE = "none";
+	public static final String FORMAT_GZIP = "gzip";
+	public static final String FORMAT_DEFLATE = "deflate";
+
+	private static final int BLOCK_SIZE = 128 * 1024;
+	private static final int DICTIONARY_SIZE = 32 * 1024;
+	private static final int BLOCKS_PER_THREAD = 4;
+	private static final int SPILL_SIZE = 16 * 1024 * 1024;
+
+	private String format;
+	private int threads;
+	private ExecutorService pool;
+	private Set<String> skipExtensions = new HashSet<String>();
+
+	/**
+	 * @param format			gzip or deflate
+	 * @param threads			threads compressing the blocks of a payload
+	 * @param skipExtensions	comma separated extensions of already compressed types, written as they are
+	 */
+	public BinaryCompressor(String format, int threads, String skipExtensions) {
+		this.format = format;
+		this.threads = Math.max(1, threads);
+		if (this.threads > 1)
+			pool = Executors.newFixedThreadPool(this.threads);
+		for (String extension : skipExtensions.split(",")) {
+			if (!extension.trim().isEmpty())
+				this.skipExtensions.add(extension.trim().toLowerCase(Locale.ROOT));
+		}
+	}
+
+	/**
+	 * @param fileName
+	 * @return false for the file names whose extension is in the skip list
+	 */
+	public boolean appliesTo(String fileName) {
+		int dot = fileName.lastIndexOf('.');
+		return dot < 0 || !skipExtensions.contains(fileName.substring(dot + 1).toLowerCase(Locale.ROOT));
+	}
+
+	/**
+	 * @return the extension appended to the names of compressed files
+	 */
+	public String getExtension() {
+		return FORMAT_GZIP.equals(format) ? ".gz" : ".deflate";
+	}
+
+	public BinaryPayload compress(BinaryPayload payload) throws IOException {
+		SpillingOutputStream out = new SpillingOutputStream();
+		try {
+			boolean gzip = FORMAT_GZIP.equals(format);
+			if (gzip)
+				out.write(new byte[] { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff });
+
+			CRC32 crc = new CRC32();
+			long size = compressBlocks(payload, out, crc);
+
+			if (gzip) {
+				writeIntLE(out, crc.getValue());
+				writeIntLE(out, size);
+			}
+			out.close();
+		} catch (IOException | RuntimeException e) {
+			out.discard();
+			throw e;
+		}
+		return out.toPayload();
+	}
+
+	/**
+	 * reads the payload block by block, keeping up to BLOCKS_PER_THREAD blocks per thread in flight
+	 * @return the uncompressed size
+	 */
+	private long compressBlocks(BinaryPayload payload, OutputStream out, CRC32 crc) throws IOException {
+		ArrayDeque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+		InputStream in = payload.openStream();
+		try {
+			long size = 0;
+			byte[] block = readBlock(in);
+			byte[] dictionary = null;
+			do {
+				byte[] next = readBlock(in);
+				boolean last = next.length == 0;
+				crc.update(block);
+				size += block.length;
+
+				BlockTask task = new BlockTask(block, dictionary, last);
+				if (pool == null) {
+					out.write(task.call());
+				} else {
+					pending.add(pool.submit(task));
+					while (pending.size() >= threads * BLOCKS_PER_THREAD || (last && !pending.isEmpty()))
+						out.write(pending.poll().get());
+				}
+
+				dictionary = block.length > DICTIONARY_SIZE ? Arrays.copyOfRange(block, block.length - DICTIONARY_SIZE, block.length) : block;
+				block = next;
+			} while (block.length > 0);
+			return size;
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while compressing", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Unable to compress", e.getCause());
+		} finally {
+			for (Future<byte[]> future : pending)
+				future.cancel(true);
+			in.close();
+		}
+	}
+
+	/**
+	 * @return the next block, shorter at the end of the input and empty past it
+	 */
+	private byte[] readBlock(InputStream in) throws IOException {
+		byte[] block = new byte[BLOCK_SIZE];
+		int length = 0;
+		int read;
+		while (length < BLOCK_SIZE && (read = in.read(block, length, BLOCK_SIZE - length)) > 0)
+			length += read;
+		return length == BLOCK_SIZE ? block : Arrays.copyOf(block, length);
+	}
+
+	private static void writeIntLE(OutputStream out, long value) throws IOException {
+		out.write((int) value & 0xff);
+		out.write((int) (value >> 8) & 0xff);
+		out.write((int) (value >> 16) & 0xff);
+		out.write((int) (value >> 24) & 0xff);
+	}
+
+	public void shutdown() {
+		if (pool != null)
+			pool.shutdownNow();
+	}
+
+	/**
+	 * compresses a single block into raw deflate data ending on a byte boundary
+	 */
+	private static class BlockTask implements Callable<byte[]> {
+
+		private byte[] block;
+		private byte[] dictionary;
+		private boolean last;
+
+		BlockTask(byte[] block, byte[] dictionary, boolean last) {
+			this.block = block;
+			this.dictionary = dictionary;
+			this.last = last;
+		}
+
+		public byte[] call() {
+			Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+			try {
+				if (dictionary != null)
+					deflater.setDictionary(dictionary);
+				deflater.setInput(block);
+				if (last)
+					deflater.finish();
+
+				ByteArrayOutputStream out = new ByteArrayOutputStream(block.length / 2 + 64);
+				byte[] buffer = new byte[16 * 1024];
+				int length;
+				if (last) {
+					while (!deflater.finished()) {
+						length = deflater.deflate(buffer);
+						out.write(buffer, 0, length);
+					}
+				} else {
+					// a sync flush is complete when it leaves room in the buffer
+					do {
+						length = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+						out.write(buffer, 0, length);
+					} while (length == buffer.length);
+				}
+				return out.toByteArray();
+			} finally {
+				deflater.end();
+			}
+		}
+	}
+
+	/**
+	 * buffers in memory, moving to a temporary file past SPILL_SIZE
+	 */
+	private static class SpillingOutputStream extends OutputStream {
+
+		private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+		private File file;
+		private OutputStream fileStream;
+
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (fileStream == null && memory.size() + len > SPILL_SIZE) {
+				file = File.createTempFile("binary-output-", ".tmp");
+				fileStream = new FileOutputStream(file);
+				memory.writeTo(fileStream);
+				memory = null;
+			}
+			if (fileStream != null) {
+				fileStream.write(b, off, len);
+			} else {
+				memory.write(b, off, len);
+			}
+		}
+
+		public void close() throws IOException {
+			if (fileStream != null)
+				fileStream.close();
+		}
+
+		void discard() {
+			try {
+				close();
+			} catch (IOException e) {
+				// nothing more to do with it
+			}
+			if (file != null)
+				file.delete();
+		}
+
+		BinaryPayload toPayload() {
+			return file != null ? BinaryPayload.ofTemporary(file) : BinaryPayload.of(memory.toByteArray());
+		}
+	}
+}
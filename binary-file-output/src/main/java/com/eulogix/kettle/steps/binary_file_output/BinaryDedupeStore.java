@@ -0,0 +1,124 @@
+package com.eulogix.kettle.steps.binary_file_output;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.UUID;
+
+/**
+ * Content addressed store: every unique payload is written once under
+ * {store}/ab/cd/abcd..., named after its SHA-256, and the requested targets
+ * become hard or symbolic links to it. Where a link cannot be created (e.g. hard
+ * links across file systems) the stored payload is copied instead.
+ * 
+ * Payloads are written to a temporary file and moved in place, so concurrent
+ * writers of the same payload (threads, step copies or runs) never see a partial file.
+ * Links are created under a temporary name and renamed over the target for the same reason.
+ * 
+ * A hard link shares the stored copy with every other target of the same content: a target
+ * must only be replaced by a rename (this store, or atomic writes), never rewritten in place,
+ * which is why hard links cannot be used to append chunks.
+ */
+public class BinaryDedupeStore {
+
+	public static final String LINK_HARD = "hard";
+	public static final String LINK_SYMBOLIC = "symbolic";
+
+	private Path root;
+	private boolean symbolic;
+
+	public BinaryDedupeStore(String root, String linkType) {
+		this.root = new File(root).getAbsoluteFile().toPath();
+		this.symbolic = LINK_SYMBOLIC.equals(linkType);
+	}
+
+	/**
+	 * @param payload
+	 * @return the hex SHA-256 of the content
+	 * @throws IOException
+	 */
+	public static String hash(BinaryPayload payload) throws IOException {
+		return new BinaryChecksum(BinaryChecksum.SHA256).compute(payload);
+	}
+
+	/**
+	 * @return a fresh digest of the same hash, to be updated while the content is read
+	 */
+	public static MessageDigest newDigest() {
+		return new BinaryChecksum(BinaryChecksum.SHA256).newDigest();
+	}
+
+	/**
+	 * stores the content if it is not there yet and links the target to it.
+	 * The folder of the target must already exist
+	 * @param target
+	 * @param payload
+	 * @param hash the hash of the content, as returned by hash()
+	 * @throws IOException
+	 */
+	public void place(File target, BinaryPayload payload, String hash) throws IOException {
+		Path stored = store(payload, hash);
+		Path link = target.getAbsoluteFile().toPath();
+
+		// never deleting the previous target first, nor writing through it: it may itself be a link to another stored copy
+		Path temp = link.resolveSibling("." + link.getFileName() + "." + UUID.randomUUID() + ".link");
+		try {
+			try {
+				if (symbolic) {
+					Files.createSymbolicLink(temp, stored);
+				} else {
+					Files.createLink(temp, stored);
+				}
+			} catch (IOException | UnsupportedOperationException e) {
+				Files.copy(stored, temp);
+				force(temp);
+			}
+			Files.move(temp, link, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	private Path store(BinaryPayload payload, String hash) throws IOException {
+		Path stored = root.resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4)).resolve(hash);
+		// a copy of another size was cut short (e.g. written by a run without forcing) and is replaced
+		if (Files.exists(stored) && Files.size(stored) == payload.size())
+			return stored;
+
+		Files.createDirectories(stored.getParent());
+		// not createTempFile(), which would make the payload readable by the owner only
+		Path temp = stored.resolveSibling(hash + "." + UUID.randomUUID() + ".tmp");
+		try {
+			InputStream in = payload.openStream();
+			try {
+				Files.copy(in, temp);
+			} finally {
+				in.close();
+			}
+			// on disk before any target links to it
+			force(temp);
+			Files.move(temp, stored, StandardCopyOption.ATOMIC_MOVE);
+		} catch (FileAlreadyExistsException e) {
+			// stored meanwhile by another writer
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+		return stored;
+	}
+
+	private static void force(Path path) throws IOException {
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE);
+		try {
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+	}
+}
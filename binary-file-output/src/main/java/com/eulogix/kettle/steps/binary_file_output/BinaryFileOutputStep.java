@@ -24,10 +24,18 @@ package com.eulogix.kettle.steps.binary_file_output;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
 
-import org.apache.commons.io.FileUtils;
 import org.pentaho.di.core.exception.KettleException;
 import org.pentaho.di.core.row.RowDataUtil;
 import org.pentaho.di.core.row.RowMetaInterface;
@@ -63,6 +71,8 @@ import com.google.gson.JsonObject;
  */
 
 public class BinaryFileOutputStep extends EasyStep implements StepInterface {
+	
+	private static final int DIRECT_BUFFER_SIZE = 1024 * 1024;
 
 	/**
 	 * The constructor should simply pass on its arguments to the parent class.
@@ -101,7 +111,117 @@ public class BinaryFileOutputStep extends EasyStep implements StepInterface {
 		BinaryFileOutputStepMeta meta = (BinaryFileOutputStepMeta) smi;
 		BinaryFileOutputStepData data = (BinaryFileOutputStepData) sdi;
 
-		return super.init(meta, data);
+		if (!super.init(meta, data))
+			return false;
+		
+		data.writer = new BinaryFileWriter();
+		
+		String durability = getSetting("durability");
+		if (!durability.isEmpty())
+			data.writer.durability = durability;
+		data.writer.groupSyncFiles = Math.max(1, getIntSetting("groupSyncFiles", 100));
+		data.writer.groupSyncMillis = getIntSetting("groupSyncMillis", 1000);
+		if (BinaryFileWriter.DURABILITY_GROUP.equals(data.writer.durability))
+			data.syncWaiting = new ArrayDeque<BinaryFileWriteJob>();
+		
+		if (meta.isArchiveMode(this)) {
+			if (getSetting("archiveFile").isEmpty()) {
+				logError("An archive file must be set to write " + getSetting("archiveFormat") + " containers");
+				return false;
+			}
+			// each step copy writes its own containers
+			String archiveFile = getSetting("archiveFile") + (getStepMeta().getCopies() > 1 ? "-" + getCopy() : "");
+			data.writer.archive = new BinaryArchiveWriter(archiveFile, getSetting("archiveFormat"), 
+					getIntSetting("archiveMaxSizeMb", 0) * 1024L * 1024L, getSetting("storedExtensions"));
+		}
+		
+		if (meta.isDedupeMode(this)) {
+			if (getSetting("dedupeStore").isEmpty()) {
+				logError("A store folder must be set to deduplicate files");
+				return false;
+			}
+			// in archive mode the hash is still computed, but entries are not deduplicated
+			data.writer.dedupeStore = new BinaryDedupeStore(getSetting("dedupeStore"), getSetting("dedupeLinkType"));
+		}
+		
+		data.writer.incremental = meta.isIncrementalMode(this);
+		
+		// containers are written sequentially and from scratch, these only apply to single files
+		if (data.writer.archive == null && getBooleanSetting("appendChunks")) {
+			// chunks go to files still being assembled, so there is nothing to rename or commit
+			if (data.writer.dedupeStore != null && !BinaryDedupeStore.LINK_SYMBOLIC.equals(getSetting("dedupeLinkType"))) {
+				// appending in place would change the stored copy shared by every other target of the same content
+				logError("Hard links to the deduplication store cannot be used when appending chunks");
+				return false;
+			}
+			data.writer.appender = new BinaryChunkAppender(getIntSetting("maxOpenFiles", 64), data.writer.durability);
+			data.chunkIndexes = !getSetting("chunkIndex").isEmpty();
+			data.lastChunkFlags = !getSetting("lastChunk").isEmpty();
+		} else if (data.writer.archive == null) {
+			data.writer.atomic = getBooleanSetting("atomic");
+			if (!getSetting("manifestFile").isEmpty()) {
+				String manifestFile = getSetting("manifestFile") + (getStepMeta().getCopies() > 1 ? "-" + getCopy() : "");
+				data.writer.manifest = new BinaryWriteManifest(new File(manifestFile));
+				try {
+					data.writer.manifest.open();
+				} catch (IOException e) {
+					logError("Unable to open the manifest " + manifestFile, e);
+					return false;
+				}
+			}
+		}
+		
+		String compression = getSetting("compression");
+		if (!compression.isEmpty() && !BinaryCompressor.FORMAT_NONE.equals(compression)) {
+			// concatenated gzip members are still a valid gzip file, concatenated raw deflate streams are not
+			if (data.writer.appender != null && !BinaryCompressor.FORMAT_GZIP.equals(compression)) {
+				logError("Only gzip compression can be used when appending chunks");
+				return false;
+			}
+			int compressionThreads = getIntSetting("compressionThreads", 1);
+			data.writer.compressor = new BinaryCompressor(compression, 
+					compressionThreads > 0 ? compressionThreads : Runtime.getRuntime().availableProcessors(), 
+					getSetting("compressionSkipExtensions"));
+		}
+		
+		data.emitChecksum = meta.hasChecksum(this);
+		if (data.emitChecksum) {
+			data.writer.checksum = new BinaryChecksum(getSetting("checksum"));
+		}
+		// chunks and container entries are not read back
+		if (getBooleanSetting("verifyWrites") && data.writer.archive == null && data.writer.appender == null) {
+			data.writer.verify = true;
+			if (data.writer.checksum == null) {
+				data.writer.checksum = new BinaryChecksum(BinaryChecksum.CRC32C);
+			}
+		}
+		
+		if (data.writer.archive != null)
+			data.writer.archive.syncOnClose = !BinaryFileWriter.DURABILITY_NONE.equals(data.writer.durability);
+		data.shardDepth = meta.getShardDepth(this);
+		data.sourcePaths = !getSetting("sourcePath").isEmpty();
+		
+		data.localityRows = getIntSetting("localityRows", 0);
+		// entries and chunks must keep their order
+		if (data.localityRows > 0 && data.writer.archive == null && data.writer.appender == null) {
+			data.localityBatch = new ArrayList<BinaryFileWriteJob>(data.localityRows);
+			data.localityMaxBytes = getIntSetting("localityMb", 64) * 1024L * 1024L;
+		}
+		
+		int writerThreads = getIntSetting("writerThreads", 1);
+		data.writer.bufferPool = new BinaryBufferPool(DIRECT_BUFFER_SIZE, Math.max(1, writerThreads));
+		// entries and chunks are appended in row order, more threads would only wait on each other
+		if (writerThreads > 1 && data.writer.archive == null && data.writer.appender == null) {
+			data.writerPool = Executors.newFixedThreadPool(writerThreads);
+			data.maxInFlight = Math.max(writerThreads, getIntSetting("maxInFlight", 1000));
+			data.orderedOutput = getBooleanSetting("orderedOutput");
+			if (data.orderedOutput) {
+				data.pendingJobs = new ArrayDeque<Future<BinaryFileWriteJob>>();
+			} else {
+				data.completionService = new ExecutorCompletionService<BinaryFileWriteJob>(data.writerPool);
+			}
+		}
+		return true;
 	}	
 
 	/**
@@ -136,6 +256,15 @@ public class BinaryFileOutputStep extends EasyStep implements StepInterface {
 		
 		// if no more rows are expected, indicate step is finished and processRow() should not be called again
 		if (r == null){
+			// wait for the writes still in flight
+			flushLocalityBatch(data);
+			emitCompletedJobs(data, 0);
+			try {
+				data.writer.close();
+			} catch (IOException e) {
+				throw new KettleException("Unable to complete the output", e);
+			}
+			emitSyncedJobs(data);
 			setOutputDone();
 			return false;
 		}
@@ -146,29 +275,53 @@ public class BinaryFileOutputStep extends EasyStep implements StepInterface {
 		if (first) {
 			first = false;
 			// clone the input row structure and place it in our data object
+			data.inputRowSize = getInputRowMeta().size();
 			data.outputRowMeta = (RowMetaInterface) getInputRowMeta().clone();
 			// use meta.getFields() to change it, so it reflects the output row structure 
 			meta.getFields(data.outputRowMeta, getStepname(), null, null, this, null, null);
 		}
 		 	
-		Object[] outputRow;
+		String fileName = getString(r, "fileName");
+		boolean compress = data.writer.compressor != null && data.writer.compressor.appliesTo(fileName);
+		String completePath = getString(r, "folder") 
+				+ File.separator 
+				+ getShardPrefix(data, fileName)
+				+ fileName
+				+ (compress ? data.writer.compressor.getExtension() : "");
 		
-		try {
-			String completePath = getFieldValue(r, meta.fields.get("folder").toString()).toString() 
-					+ File.separator 
-					+ getFieldValue(r, meta.fields.get("fileName").toString()).toString();
-			
-			FileUtils.writeByteArrayToFile(new File(completePath), (byte[]) getFieldValue(r, meta.fields.get("fileContent").toString()));
-			outputRow = RowDataUtil.addValueData(r, data.outputRowMeta.size() - 1, true );
-		} catch (IOException e) {
-			e.printStackTrace();
-			outputRow = RowDataUtil.addValueData(r, data.outputRowMeta.size() - 1, false );
+		BinaryFileWriteJob job = new BinaryFileWriteJob(data.writer, r, new File(completePath), getPayload(data, r));
+		job.compress = compress;
+		if (data.chunkIndexes) {
+			job.chunkIndex = getInteger(r, "chunkIndex");
+		}
+		if (data.lastChunkFlags) {
+			job.lastChunk = Boolean.TRUE.equals(getBoolean(r, "lastChunk"));
 		}
 		
-		// put the row to the output row stream
-		putRow(data.outputRowMeta, outputRow); 
-			
-		 
+		if (data.localityBatch != null) {
+			data.localityBatch.add(job);
+			data.localityBatchBytes += job.payload.heapSize();
+			if (data.localityBatch.size() >= data.localityRows || data.localityBatchBytes >= data.localityMaxBytes
+					|| isOverMemoryBudget(data.localityBatchBytes)) {
+				flushLocalityBatch(data);
+			}
+		} else if (data.writerPool == null) {
+			emit(data, job.call());
+		} else {
+			// released by the writer thread, counted until the job is emitted
+			job.heldBytes = job.payload.heapSize();
+			data.inFlightBytes += job.heldBytes;
+			if (data.orderedOutput) {
+				data.pendingJobs.add(data.writerPool.submit(job));
+			} else {
+				data.completionService.submit(job);
+			}
+			data.inFlight++;
+			// emit whatever is ready, blocking only when too many writes are in flight
+			emitCompletedJobs(data, data.maxInFlight - 1);
+		}
+	
+		emitSyncedJobs(data);
 	
 		// log progress if it is time to to so
 		if (checkFeedback(getLinesRead())) {
@@ -179,8 +332,169 @@ public class BinaryFileOutputStep extends EasyStep implements StepInterface {
 		return true;
 	}
 	
-	public Object getFieldValue(Object[] rowData, String fieldName) {
-		return rowData[ getInputRowMeta().indexOfValue( fieldName ) ];
+	/**
+	 * the content comes from the file named in the source path field when that is set,
+	 * so that large files can be copied without being loaded in the row
+	 */
+	protected BinaryPayload getPayload(BinaryFileOutputStepData data, Object[] r) throws KettleException {
+		if (data.sourcePaths) {
+			String sourcePath = getString(r, "sourcePath");
+			if (sourcePath != null && !sourcePath.isEmpty())
+				return BinaryPayload.of(new File(sourcePath));
+		}
+		return BinaryPayload.of(getBytes(r, "fileContent"));
+	}
+	
+	/**
+	 * spreads files over hash prefix folders (e.g. "3f/a2/") so that no single folder grows
+	 * to millions of entries. The hash only depends on the file name, so re-runs land on the same path
+	 */
+	protected String getShardPrefix(BinaryFileOutputStepData data, String fileName) {
+		if (data.shardDepth == 0)
+			return "";
+		
+		CRC32 crc = new CRC32();
+		crc.update(fileName.getBytes(StandardCharsets.UTF_8));
+		String hash = String.format("%08x", crc.getValue());
+		
+		StringBuilder prefix = new StringBuilder();
+		for (int level = 0; level < data.shardDepth; level++) {
+			prefix.append(hash, level * 2, level * 2 + 2).append(File.separator);
+		}
+		return prefix.toString();
+	}
+	
+	/**
+	 * writes the buffered jobs folder by folder, in path order, so that consecutive writes hit
+	 * the same (or a neighbouring) folder while it is still cached, then emits the rows in the
+	 * order they came in
+	 */
+	protected void flushLocalityBatch(BinaryFileOutputStepData data) throws KettleException {
+		if (data.localityBatch == null || data.localityBatch.isEmpty())
+			return;
+		
+		TreeMap<String, List<BinaryFileWriteJob>> folders = new TreeMap<String, List<BinaryFileWriteJob>>();
+		for (BinaryFileWriteJob job : data.localityBatch) {
+			String folder = job.target.getAbsoluteFile().getParent();
+			List<BinaryFileWriteJob> jobs = folders.get(folder);
+			if (jobs == null) {
+				jobs = new ArrayList<BinaryFileWriteJob>();
+				folders.put(folder, jobs);
+			}
+			jobs.add(job);
+		}
+		
+		try {
+			List<Future<BinaryFileWriteJob>> futures = new ArrayList<Future<BinaryFileWriteJob>>();
+			for (List<BinaryFileWriteJob> jobs : folders.values()) {
+				for (BinaryFileWriteJob job : jobs) {
+					if (data.writerPool == null) {
+						job.call();
+					} else {
+						futures.add(data.writerPool.submit(job));
+					}
+				}
+			}
+			for (Future<BinaryFileWriteJob> future : futures) {
+				future.get();
+			}
+		} catch (InterruptedException e) {
+			throw new KettleException("Interrupted while waiting for pending writes", e);
+		} catch (ExecutionException e) {
+			throw new KettleException("Unexpected error in writer thread", e.getCause());
+		}
+		
+		for (BinaryFileWriteJob job : data.localityBatch) {
+			emit(data, job);
+		}
+		data.localityBatch.clear();
+		data.localityBatchBytes = 0;
+	}
+	
+	/**
+	 * emits the rows whose write has completed, waiting until no more than maxPending writes are in flight,
+	 * and until their payloads fit in the memory budget along with the rows queued for the next steps.
+	 * In ordered mode rows are emitted in the order they came in, otherwise as soon as they are written.
+	 */
+	protected void emitCompletedJobs(BinaryFileOutputStepData data, int maxPending) throws KettleException {
+		if (data.writerPool == null)
+			return;
+		
+		try {
+			if (data.orderedOutput) {
+				while (!data.pendingJobs.isEmpty() && (data.inFlight > maxPending || isOverMemoryBudget(data.inFlightBytes) || data.pendingJobs.peek().isDone())) {
+					emitCompleted(data, data.pendingJobs.poll().get());
+				}
+			} else {
+				Future<BinaryFileWriteJob> done;
+				while (data.inFlight > 0 && (done = data.inFlight > maxPending || isOverMemoryBudget(data.inFlightBytes) ? data.completionService.take() : data.completionService.poll()) != null) {
+					emitCompleted(data, done.get());
+				}
+			}
+		} catch (InterruptedException e) {
+			throw new KettleException("Interrupted while waiting for pending writes", e);
+		} catch (ExecutionException e) {
+			throw new KettleException("Unexpected error in writer thread", e.getCause());
+		}
+	}
+	
+	private void emitCompleted(BinaryFileOutputStepData data, BinaryFileWriteJob job) throws KettleException {
+		data.inFlight--;
+		data.inFlightBytes -= job.heldBytes;
+		emit(data, job);
+	}
+	
+	/**
+	 * with group durability rows are held, in the order they are completed, until the
+	 * group holding their file has been forced to disk (and renamed in atomic mode)
+	 */
+	protected void emit(BinaryFileOutputStepData data, BinaryFileWriteJob job) throws KettleException {
+		if (data.syncWaiting == null) {
+			emitRow(data, job);
+			return;
+		}
+		data.syncWaiting.add(job);
+		emitSyncedJobs(data);
+	}
+	
+	protected void emitSyncedJobs(BinaryFileOutputStepData data) throws KettleException {
+		if (data.syncWaiting == null)
+			return;
+		while (!data.syncWaiting.isEmpty() && !data.syncWaiting.peek().isSyncPending()) {
+			BinaryFileWriteJob job = data.syncWaiting.poll();
+			job.applySyncOutcome();
+			emitRow(data, job);
+		}
+	}
+	
+	/**
+	 * attaches the outcome of the write to the row and passes it on
+	 */
+	protected void emitRow(BinaryFileOutputStepData data, BinaryFileWriteJob job) throws KettleException {
+		if (job.error != null) {
+			logError("Unable to write " + job.target, job.error);
+		}
+		Object[] outputRow = RowDataUtil.createResizedCopy(job.row, data.outputRowMeta.size());
+		int index = data.inputRowSize;
+		outputRow[index++] = job.created;
+		if (data.writer.archive != null) {
+			outputRow[index++] = job.container;
+		}
+		if (data.writer.dedupeStore != null) {
+			outputRow[index++] = job.contentHash;
+		}
+		if (data.writer.incremental) {
+			outputRow[index++] = job.status;
+		}
+		if (data.shardDepth > 0) {
+			outputRow[index++] = job.target.getPath();
+		}
+		if (data.emitChecksum) {
+			outputRow[index++] = job.checksum;
+		}
+		
+		// put the row to the output row stream
+		putRow(data.outputRowMeta, outputRow);
 	}
 	
 	/**
@@ -203,6 +517,21 @@ public class BinaryFileOutputStep extends EasyStep implements StepInterface {
 		BinaryFileOutputStepMeta meta = (BinaryFileOutputStepMeta) smi;
 		BinaryFileOutputStepData data = (BinaryFileOutputStepData) sdi;
 		
+		if (data.writerPool != null) {
+			data.writerPool.shutdownNow();
+		}
+		
+		if (data.writer != null) {
+			if (data.writer.compressor != null) {
+				data.writer.compressor.shutdown();
+			}
+			try {
+				data.writer.close();
+			} catch (IOException e) {
+				logError("Unable to complete the output", e);
+			}
+		}
+		
 		super.dispose(meta, data);
 	}
 
@@ -22,6 +22,12 @@
 
 package com.eulogix.kettle.steps.binary_file_output;
 
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
 import org.pentaho.di.core.row.RowMetaInterface;
 import org.pentaho.di.trans.step.BaseStepData;
 import org.pentaho.di.trans.step.StepDataInterface;
@@ -50,6 +56,67 @@ public class BinaryFileOutputStepData extends BaseStepData {
 
 	public RowMetaInterface outputRowMeta;
 	
+	public int inputRowSize;
+	
+	public BinaryFileWriter writer;
+	
+	/**
+	 * hash prefix folders between folder and file name
+	 */
+	public int shardDepth;
+	
+	/**
+	 * append mode: chunk positions are read from the chunk index field
+	 */
+	public boolean chunkIndexes;
+	
+	/**
+	 * append mode: the end of every target is flagged in the last chunk field
+	 */
+	public boolean lastChunkFlags;
+	
+	/**
+	 * the content is read from the file named in the source path field, when set
+	 */
+	public boolean sourcePaths;
+	
+	public boolean emitChecksum;
+	
+	/**
+	 * locality mode: jobs waiting to be written grouped by folder, bounded in rows and in payload bytes held
+	 */
+	public List<BinaryFileWriteJob> localityBatch;
+	public int localityRows;
+	public long localityMaxBytes;
+	public long localityBatchBytes;
+	
+	/**
+	 * writer threads, only used with more than one thread
+	 */
+	public ExecutorService writerPool;
+	public int maxInFlight;
+	public int inFlight;
+	/**
+	 * heap taken by the payloads of the writes in flight, counted in the memory budget
+	 */
+	public long inFlightBytes;
+	public boolean orderedOutput;
+	
+	/**
+	 * ordered mode: writes in the order the rows came in
+	 */
+	public ArrayDeque<Future<BinaryFileWriteJob>> pendingJobs;
+	
+	/**
+	 * unordered mode: writes in order of completion
+	 */
+	public CompletionService<BinaryFileWriteJob> completionService;
+	
+	/**
+	 * group durability: written rows waiting for their group to be synced, null otherwise
+	 */
+	public ArrayDeque<BinaryFileWriteJob> syncWaiting;
+	
     public BinaryFileOutputStepData()
 	{
 		super();
@@ -22,6 +22,8 @@
 
 package com.eulogix.kettle.steps.binary_file_output;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Map;
 
 import org.eclipse.swt.SWT;
@@ -155,6 +157,33 @@ public class BinaryFileOutputStepDialog extends EasyStepDialog {
 		
 		for (Map.Entry<String, Object> entry : meta.fields.entrySet()) {
 		    switch(entry.getKey()) {
+		    	case "writerThreads":
+		    	case "maxInFlight":
+		    	case "localityRows":
+		    	case "localityMb":
+		    	case "memoryBudgetMb": lastControl = addTextVarField(entry.getKey(), lastControl); break;
+		    	case "orderedOutput": lastControl = addCheckboxField(entry.getKey(), lastControl); break;
+		    	case "archiveFormat": lastControl = addCCombo(entry.getKey(), lastControl, new ArrayList<String>(Arrays.asList("none", BinaryArchiveWriter.FORMAT_ZIP, BinaryArchiveWriter.FORMAT_TAR))); break;
+		    	case "archiveFile":
+		    	case "archiveMaxSizeMb":
+		    	case "storedExtensions":
+		    	case "dedupeStore":
+		    	case "groupSyncFiles":
+		    	case "groupSyncMillis":
+		    	case "manifestFile":
+		    	case "maxOpenFiles":
+		    	case "compressionThreads":
+		    	case "compressionSkipExtensions": lastControl = addTextVarField(entry.getKey(), lastControl); break;
+		    	case "dedupe":
+		    	case "incremental":
+		    	case "atomic":
+		    	case "appendChunks":
+		    	case "verifyWrites": lastControl = addCheckboxField(entry.getKey(), lastControl); break;
+		    	case "shardDepth": lastControl = addCCombo(entry.getKey(), lastControl, new ArrayList<String>(Arrays.asList("0", "1", "2", "3", "4"))); break;
+		    	case "compression": lastControl = addCCombo(entry.getKey(), lastControl, new ArrayList<String>(Arrays.asList(BinaryCompressor.FORMAT_NONE, BinaryCompressor.FORMAT_GZIP, BinaryCompressor.FORMAT_DEFLATE))); break;
+		    	case "checksum": lastControl = addCCombo(entry.getKey(), lastControl, new ArrayList<String>(Arrays.asList(BinaryChecksum.NONE, BinaryChecksum.CRC32C, BinaryChecksum.MD5, BinaryChecksum.SHA256))); break;
+		    	case "durability": lastControl = addCCombo(entry.getKey(), lastControl, new ArrayList<String>(Arrays.asList(BinaryFileWriter.DURABILITY_NONE, BinaryFileWriter.DURABILITY_FILE, BinaryFileWriter.DURABILITY_GROUP))); break;
+		    	case "dedupeLinkType": lastControl = addCCombo(entry.getKey(), lastControl, new ArrayList<String>(Arrays.asList(BinaryDedupeStore.LINK_HARD, BinaryDedupeStore.LINK_SYMBOLIC))); break;
 		    	default: lastControl = addStreamFieldSelector(entry.getKey(), lastControl); break;
 		    	//default: lastControl = addTextVarField(entry.getKey(), lastControl); break;
 		    }
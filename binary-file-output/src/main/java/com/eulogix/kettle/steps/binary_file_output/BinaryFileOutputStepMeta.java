@@ -38,6 +38,11 @@ public class BinaryFileOutputStepMeta extends EasyStepMeta {
 	 */
 	private static Class<?> PKG = BinaryFileOutputStepMeta.class; // for i18n purposes
 	
+	/**
+	 * each level takes two hex digits of a 32 bit hash
+	 */
+	public static final int MAX_SHARD_DEPTH = 4;
+	
 	/**
 	 * Constructor should call super() to make sure the base class has a chance to initialize properly.
 	 */
@@ -50,6 +55,36 @@ public class BinaryFileOutputStepMeta extends EasyStepMeta {
 		fields.put("fileName", "");
 		fields.put("folder", "");
 		fields.put("fileContent", "");
+		fields.put("sourcePath", "");
+		fields.put("writerThreads", "1");
+		fields.put("maxInFlight", "1000");
+		fields.put("orderedOutput", "Y");
+		fields.put("localityRows", "0");
+		fields.put("localityMb", "64");
+		fields.put("memoryBudgetMb", "0");
+		fields.put("archiveFormat", "none");
+		fields.put("archiveFile", "");
+		fields.put("archiveMaxSizeMb", "0");
+		fields.put("storedExtensions", "zip,gz,7z,rar,jpg,jpeg,png,gif,pdf,docx,xlsx,pptx,mp3,mp4");
+		fields.put("dedupe", "N");
+		fields.put("dedupeStore", "");
+		fields.put("dedupeLinkType", BinaryDedupeStore.LINK_HARD);
+		fields.put("incremental", "N");
+		fields.put("shardDepth", "0");
+		fields.put("durability", BinaryFileWriter.DURABILITY_NONE);
+		fields.put("groupSyncFiles", "100");
+		fields.put("groupSyncMillis", "1000");
+		fields.put("atomic", "N");
+		fields.put("manifestFile", "");
+		fields.put("appendChunks", "N");
+		fields.put("chunkIndex", "");
+		fields.put("lastChunk", "");
+		fields.put("maxOpenFiles", "64");
+		fields.put("compression", BinaryCompressor.FORMAT_NONE);
+		fields.put("compressionThreads", "1");
+		fields.put("compressionSkipExtensions", "zip,gz,bz2,xz,7z,rar,jpg,jpeg,png,gif,pdf,docx,xlsx,pptx,mp3,mp4");
+		fields.put("checksum", BinaryChecksum.NONE);
+		fields.put("verifyWrites", "N");
 	}
 	
 	/**
@@ -131,7 +166,91 @@ public class BinaryFileOutputStepMeta extends EasyStepMeta {
 		pName.setTrimType(ValueMeta.TRIM_TYPE_BOTH);
 		pName.setOrigin(name);		// the name of the step that adds this field  
 		inputRowMeta.addValueMeta(pName);
+		
+		if (isArchiveMode(space)) {
+			ValueMetaInterface container = new ValueMeta("container", ValueMeta.TYPE_STRING);
+			container.setOrigin(name);
+			inputRowMeta.addValueMeta(container);
+		}
+		
+		if (isDedupeMode(space)) {
+			ValueMetaInterface contentHash = new ValueMeta("contentHash", ValueMeta.TYPE_STRING);
+			contentHash.setOrigin(name);
+			inputRowMeta.addValueMeta(contentHash);
+		}
+		
+		if (isIncrementalMode(space)) {
+			ValueMetaInterface writeStatus = new ValueMeta("writeStatus", ValueMeta.TYPE_STRING);
+			writeStatus.setOrigin(name);
+			inputRowMeta.addValueMeta(writeStatus);
+		}
+		
+		if (getShardDepth(space) > 0) {
+			ValueMetaInterface outputPath = new ValueMeta("outputPath", ValueMeta.TYPE_STRING);
+			outputPath.setOrigin(name);
+			inputRowMeta.addValueMeta(outputPath);
+		}
+		
+		if (hasChecksum(space)) {
+			ValueMetaInterface checksum = new ValueMeta("checksum", ValueMeta.TYPE_STRING);
+			checksum.setOrigin(name);
+			inputRowMeta.addValueMeta(checksum);
+		}
+	
+	}
+	
+	/**
+	 * a setting with its variables resolved, as the step reads it. The helpers below take the
+	 * variable space so that the fields declared here match what the step actually does
+	 */
+	private String getSetting(VariableSpace space, String key) {
+		Object value = fields.get(key);
+		if (value == null)
+			return "";
+		return (space == null ? value.toString() : space.environmentSubstitute(value.toString())).trim();
+	}
 	
+	/**
+	 * true when rows are written as entries of ZIP or TAR containers instead of single files
+	 */
+	public boolean isArchiveMode(VariableSpace space) {
+		String format = getSetting(space, "archiveFormat");
+		return BinaryArchiveWriter.FORMAT_ZIP.equals(format) || BinaryArchiveWriter.FORMAT_TAR.equals(format);
+	}
+	
+	/**
+	 * true when payloads are hashed and each unique one is stored once
+	 */
+	public boolean isDedupeMode(VariableSpace space) {
+		return "Y".equals(getSetting(space, "dedupe"));
+	}
+	
+	/**
+	 * true when targets that already hold the same bytes are left untouched.
+	 * Not applicable to archive mode, where containers are always written from scratch
+	 */
+	public boolean isIncrementalMode(VariableSpace space) {
+		return "Y".equals(getSetting(space, "incremental")) && !isArchiveMode(space);
+	}
+	
+	/**
+	 * true when a digest of the written bytes is emitted
+	 */
+	public boolean hasChecksum(VariableSpace space) {
+		String checksum = getSetting(space, "checksum");
+		return !checksum.isEmpty() && !BinaryChecksum.NONE.equals(checksum);
+	}
+	
+	/**
+	 * number of hash prefix folders placed between folder and file name, 0 to write into folder directly
+	 */
+	public int getShardDepth(VariableSpace space) {
+		String depth = getSetting(space, "shardDepth");
+		try {
+			return depth.isEmpty() ? 0 : Math.min(MAX_SHARD_DEPTH, Math.max(0, Integer.parseInt(depth)));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
 	}
 
 }
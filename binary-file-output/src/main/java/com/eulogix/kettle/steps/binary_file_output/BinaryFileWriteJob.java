@@ -0,0 +1,114 @@
+package com.eulogix.kettle.steps.binary_file_output;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+
+/**
+ * A single row to be written, along with the outcome of the write.
+ * Jobs are run either inline or on the writer pool, the outcome is then
+ * attached to the row by the step thread.
+ */
+public class BinaryFileWriteJob implements Callable<BinaryFileWriteJob> {
+
+	public final Object[] row;
+	public final File target;
+	public BinaryPayload payload;
+	/**
+	 * append mode: position of the chunk in the target, null to append in row order
+	 */
+	public Long chunkIndex;
+	/**
+	 * append mode: no more chunks will come for the target
+	 */
+	public boolean lastChunk;
+	/**
+	 * true to compress the payload, the target name already carries the compressed extension
+	 */
+	public boolean compress;
+	/**
+	 * heap taken by the payload when the job was submitted, the step counts it until the row is emitted
+	 */
+	public long heldBytes;
+
+	public static final String STATUS_WRITTEN = "written";
+	public static final String STATUS_REPLACED = "replaced";
+	public static final String STATUS_SKIPPED = "skipped";
+	public static final String STATUS_FAILED = "failed";
+
+	/**
+	 * true if the target holds the content, whether it was written or found unchanged
+	 */
+	public boolean created;
+	public String status;
+	/**
+	 * digest of the bytes written, when a checksum is configured
+	 */
+	public String checksum;
+	/**
+	 * archive mode: the container the entry was added to
+	 */
+	public String container;
+	/**
+	 * dedupe mode: SHA-256 of the content
+	 */
+	public String contentHash;
+	public IOException error;
+
+	/**
+	 * group durability: set while the file waits for its group to be forced to disk,
+	 * the step holds the row until it is cleared
+	 */
+	volatile boolean syncPending;
+	private IOException syncError;
+
+	private BinaryFileWriter writer;
+
+	public BinaryFileWriteJob(BinaryFileWriter writer, Object[] row, File target, BinaryPayload payload) {
+		this.writer = writer;
+		this.row = row;
+		this.target = target;
+		this.payload = payload;
+	}
+
+	public BinaryFileWriteJob call() {
+		try {
+			writer.write(this);
+			created = true;
+			if (status == null)
+				status = STATUS_WRITTEN;
+		} catch (IOException e) {
+			error = e;
+			created = false;
+			status = STATUS_FAILED;
+		}
+		// the payload is not needed anymore, do not keep it alive while the row waits to be emitted
+		if (payload != null)
+			payload.release();
+		payload = null;
+		return this;
+	}
+
+	public boolean isSyncPending() {
+		return syncPending;
+	}
+
+	/**
+	 * called by the thread that synced the group, the step reads the outcome once the job is no longer pending
+	 */
+	void synced(IOException e) {
+		syncError = e;
+		syncPending = false;
+	}
+
+	/**
+	 * a group sync failure fails the row of its own file only
+	 */
+	public void applySyncOutcome() {
+		if (syncError != null) {
+			error = syncError;
+			created = false;
+			status = STATUS_FAILED;
+		}
+	}
+}
@@ -0,0 +1,538 @@
+package com.eulogix.kettle.steps.binary_file_output;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Performs the actual writes. A single instance is shared by all the writer
+ * threads of a step copy, so it must be thread safe.
+ */
+public class BinaryFileWriter {
+
+	public static final String DURABILITY_NONE = "none";
+	public static final String DURABILITY_FILE = "file";
+	public static final String DURABILITY_GROUP = "group";
+
+	private static final int COMPARE_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * when set, rows become entries of rolling containers, using the target path as entry path
+	 */
+	public BinaryArchiveWriter archive;
+	
+	/**
+	 * when set, payloads are hashed and targets are linked to a single stored copy
+	 */
+	public BinaryDedupeStore dedupeStore;
+	
+	/**
+	 * compresses the payloads of the jobs flagged for compression
+	 */
+	public BinaryCompressor compressor;
+	
+	/**
+	 * digest of the final bytes of each job
+	 */
+	public BinaryChecksum checksum;
+	
+	/**
+	 * when set, written files are read back and their checksum compared with the expected one
+	 */
+	public boolean verify;
+	
+	/**
+	 * when set, rows are appended to their target as chunks of a larger file
+	 */
+	public BinaryChunkAppender appender;
+	
+	/**
+	 * when set, targets that already hold the same bytes are not written again
+	 */
+	public boolean incremental;
+	
+	/**
+	 * none leaves flushing to the OS, file forces each file to disk before its row is emitted,
+	 * group forces files in batches of groupSyncFiles or every groupSyncMillis, and their rows
+	 * are held by the step until then
+	 */
+	public String durability = DURABILITY_NONE;
+	public int groupSyncFiles;
+	public long groupSyncMillis;
+	
+	/**
+	 * when set, files are written under a temporary name and renamed once complete
+	 */
+	public boolean atomic;
+	
+	/**
+	 * when set, completed files are recorded and the ones committed by previous runs are skipped
+	 */
+	public BinaryWriteManifest manifest;
+	
+	/**
+	 * direct buffers used to write large payloads
+	 */
+	public BinaryBufferPool bufferPool;
+	
+	private List<PendingFile> syncGroup = new ArrayList<PendingFile>();
+	private long syncGeneration;
+	private ScheduledExecutorService syncTimer;
+	
+	/**
+	 * held while a group is being synced, so that flush() waits for a sync in progress
+	 */
+	private final Object syncing = new Object();
+	
+	/**
+	 * folders known to exist, so that the check and mkdirs() are done once per folder rather than once per file
+	 */
+	private Set<String> knownFolders = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	public void write(BinaryFileWriteJob job) throws IOException {
+		if (job.compress) {
+			BinaryPayload original = job.payload;
+			job.payload = compressor.compress(original);
+			original.release();
+		}
+		JobDigests digests = new JobDigests();
+		if (checksum != null)
+			digests.checksum = checksum.newDigest();
+		if (dedupeStore != null)
+			digests.content = BinaryDedupeStore.newDigest();
+		if (manifest != null)
+			digests.manifest = BinaryWriteManifest.newDigest();
+		
+		if (archive != null) {
+			job.container = archive.add(job.target.getPath(), job.payload, digests.all());
+			digests.finish(job);
+			return;
+		}
+		if (appender != null) {
+			ensureFolder(job.target.getParentFile());
+			appender.append(job.target, job.payload, job.chunkIndex, job.lastChunk, bufferPool, digests.all());
+			digests.finish(job);
+			return;
+		}
+		
+		// needed before writing: the stored copy is named after its hash, and a file committed
+		// with the same size is skipped if its checksum matches. Otherwise the digests are computed
+		// while the payload is written
+		if (dedupeStore != null || (manifest != null && manifest.hasEntry(job.target, job.payload.size()))) {
+			job.payload.update(digests.all());
+			digests.finish(job);
+		}
+		if (digests.manifestChecksum != null && manifest.isCommitted(job.target, job.payload.size(), digests.manifestChecksum)) {
+			job.status = BinaryFileWriteJob.STATUS_SKIPPED;
+			return;
+		}
+		
+		if (incremental && job.target.isFile()) {
+			if (hasContent(job.target, job.payload, digests.all())) {
+				digests.finish(job);
+				job.status = BinaryFileWriteJob.STATUS_SKIPPED;
+				return;
+			}
+			digests.reset();
+			job.status = BinaryFileWriteJob.STATUS_REPLACED;
+		}
+		
+		ensureFolder(job.target.getParentFile());
+		try {
+			writeTarget(job, digests);
+		} catch (NoSuchFileException e) {
+			// the folder may have been removed since it was cached
+			File folder = job.target.getParentFile();
+			if (folder == null || !knownFolders.remove(folder.getPath()))
+				throw e;
+			ensureFolder(folder);
+			writeTarget(job, digests);
+		}
+	}
+	
+	private void writeTarget(BinaryFileWriteJob job, JobDigests digests) throws IOException {
+		if (dedupeStore != null) {
+			dedupeStore.place(job.target, job.payload, job.contentHash);
+			if (verify) {
+				FileChannel channel = FileChannel.open(job.target.toPath(), StandardOpenOption.READ);
+				try {
+					verify(job, channel);
+				} finally {
+					channel.close();
+				}
+			}
+			if (manifest != null) {
+				// the stored copy is forced by the store, the link must be on disk too before committing it
+				forceFolder(job.target);
+				manifest.commit(job.target, job.payload.size(), digests.manifestChecksum);
+			}
+			return;
+		}
+		
+		PendingFile file = new PendingFile();
+		file.job = job;
+		file.target = job.target;
+		file.size = job.payload.size();
+		if (atomic) {
+			// hidden, in the same folder so that the rename cannot cross file systems
+			file.temp = new File(job.target.getParentFile(), "." + job.target.getName() + "." + UUID.randomUUID() + ".part").toPath();
+		}
+		
+		file.path = file.temp != null ? file.temp : job.target.toPath();
+		FileChannel channel = verify
+				? FileChannel.open(file.path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ)
+				: FileChannel.open(file.path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			job.payload.writeTo(channel, bufferPool, digests.all());
+			digests.finish(job);
+			file.checksum = digests.manifestChecksum;
+			if (verify)
+				verify(job, channel);
+			// a rename or a manifest entry promises the whole content under the final name,
+			// so the bytes go to disk first whatever the durability; group forces them later
+			if (DURABILITY_FILE.equals(durability) || (!DURABILITY_GROUP.equals(durability) && (atomic || manifest != null)))
+				channel.force(true);
+		} catch (IOException | RuntimeException e) {
+			if (file.temp != null)
+				Files.deleteIfExists(file.temp);
+			throw e;
+		} finally {
+			// group durability reopens the file to force it, rather than keeping a whole group open
+			channel.close();
+		}
+		
+		if (DURABILITY_GROUP.equals(durability)) {
+			job.syncPending = true;
+			addToSyncGroup(file);
+		} else {
+			complete(file);
+		}
+	}
+	
+	/**
+	 * reads back the written bytes; a mismatch fails the row. In atomic mode this happens before the rename
+	 */
+	private void verify(BinaryFileWriteJob job, FileChannel channel) throws IOException {
+		String written = checksum.compute(channel);
+		if (!written.equals(job.checksum))
+			throw new IOException("Verification of " + job.target + " failed, expected checksum " + job.checksum + " but read back " + written);
+	}
+	
+	/**
+	 * moves a written file in place in atomic mode and records it in the manifest,
+	 * once the rename is on disk as well
+	 */
+	private void complete(PendingFile file) throws IOException {
+		moveInPlace(file);
+		if (isRenameForced(file))
+			forceFolder(file.target);
+		if (manifest != null)
+			manifest.commit(file.target, file.size, file.checksum);
+	}
+	
+	private void moveInPlace(PendingFile file) throws IOException {
+		if (file.temp == null)
+			return;
+		try {
+			Files.move(file.temp, file.target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			Files.deleteIfExists(file.temp);
+			throw e;
+		}
+	}
+	
+	/**
+	 * a rename is only durable once its folder is forced: needed before a manifest entry, and by file and group durability
+	 */
+	private boolean isRenameForced(PendingFile file) {
+		return file.temp != null && (manifest != null || !DURABILITY_NONE.equals(durability));
+	}
+	
+	/**
+	 * group durability: files are forced together once groupSyncFiles of them are pending,
+	 * or groupSyncMillis after the first of the group was written, whichever comes first
+	 */
+	private void addToSyncGroup(PendingFile file) {
+		List<PendingFile> group = null;
+		synchronized (syncGroup) {
+			if (syncGroup.isEmpty())
+				scheduleSync(++syncGeneration);
+			syncGroup.add(file);
+			if (syncGroup.size() >= groupSyncFiles) {
+				group = new ArrayList<PendingFile>(syncGroup);
+				syncGroup.clear();
+			}
+		}
+		if (group != null)
+			syncAndClose(group);
+	}
+	
+	/**
+	 * syncs the group started as the given generation, unless it has been synced already
+	 */
+	private void scheduleSync(final long generation) {
+		if (syncTimer == null) {
+			syncTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "binary-file-output-group-sync");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		syncTimer.schedule(new Runnable() {
+			public void run() {
+				List<PendingFile> group;
+				synchronized (syncGroup) {
+					if (generation != syncGeneration || syncGroup.isEmpty())
+						return;
+					group = new ArrayList<PendingFile>(syncGroup);
+					syncGroup.clear();
+				}
+				syncAndClose(group);
+			}
+		}, groupSyncMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * forces and moves in place each file of the group, then forces each of their folders once
+	 * and records the files in the manifest, forced once for the whole group. Each outcome goes
+	 * to the job of the file, whose row the step emits once the job is no longer pending
+	 */
+	private void syncAndClose(List<PendingFile> group) {
+		synchronized (syncing) {
+			List<PendingFile> moved = new ArrayList<PendingFile>(group.size());
+			for (PendingFile file : group) {
+				try {
+					force(file.path);
+					moveInPlace(file);
+					moved.add(file);
+				} catch (IOException e) {
+					file.error = e;
+					try {
+						if (file.temp != null)
+							Files.deleteIfExists(file.temp);
+					} catch (IOException deleteError) {
+						// the sync failure is what gets reported
+					}
+				}
+			}
+			
+			Map<File, IOException> folders = new HashMap<File, IOException>();
+			for (PendingFile file : moved) {
+				if (!isRenameForced(file))
+					continue;
+				File folder = file.target.getAbsoluteFile().getParentFile();
+				if (!folders.containsKey(folder)) {
+					try {
+						forceFolder(file.target);
+						folders.put(folder, null);
+					} catch (IOException e) {
+						folders.put(folder, e);
+					}
+				}
+				file.error = folders.get(folder);
+			}
+			
+			if (manifest != null) {
+				List<PendingFile> recorded = new ArrayList<PendingFile>(moved.size());
+				for (PendingFile file : moved) {
+					if (file.error != null)
+						continue;
+					try {
+						manifest.add(file.target, file.size, file.checksum);
+						recorded.add(file);
+					} catch (IOException e) {
+						file.error = e;
+					}
+				}
+				try {
+					manifest.sync();
+				} catch (IOException e) {
+					for (PendingFile file : recorded)
+						file.error = e;
+				}
+			}
+			
+			for (PendingFile file : group)
+				file.job.synced(file.error);
+		}
+	}
+	
+	private void force(Path path) throws IOException {
+		// a write handle, as some platforms cannot flush a read only one
+		FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE);
+		try {
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+	}
+	
+	/**
+	 * makes the entry of the file in its folder durable. Folders cannot be opened on some platforms,
+	 * where renames are left to the file system
+	 */
+	private void forceFolder(File file) throws IOException {
+		File folder = file.getAbsoluteFile().getParentFile();
+		FileChannel channel;
+		try {
+			channel = FileChannel.open(folder.toPath(), StandardOpenOption.READ);
+		} catch (IOException e) {
+			return;
+		}
+		try {
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+	}
+	
+	/**
+	 * forces and completes the files still waiting for a group sync, including a sync in progress
+	 */
+	public void flush() {
+		List<PendingFile> group;
+		synchronized (syncGroup) {
+			group = new ArrayList<PendingFile>(syncGroup);
+			syncGroup.clear();
+		}
+		syncAndClose(group);
+	}
+	
+	/**
+	 * completes the pending writes and releases archive and manifest
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		try {
+			flush();
+			if (syncTimer != null)
+				syncTimer.shutdownNow();
+			if (archive != null)
+				archive.close();
+			if (appender != null)
+				appender.close();
+		} finally {
+			if (manifest != null)
+				manifest.close();
+		}
+	}
+	
+	private void ensureFolder(File folder) throws IOException {
+		if (folder == null || knownFolders.contains(folder.getPath()))
+			return;
+		// mkdirs() fails when another thread creates the folder first, so check again
+		if (!folder.mkdirs() && !folder.isDirectory())
+			throw new IOException("Unable to create folder " + folder);
+		knownFolders.add(folder.getPath());
+	}
+
+	/**
+	 * compares the sizes first, then the bytes in chunks, stopping at the first difference.
+	 * Comparing is cheaper than hashing both sides. The digests are updated with the bytes of
+	 * the payload read, so they are complete when the content is the same
+	 */
+	private boolean hasContent(File target, BinaryPayload payload, MessageDigest[] digests) throws IOException {
+		if (target.length() != payload.size())
+			return false;
+
+		byte[] existing = new byte[COMPARE_BUFFER_SIZE];
+		byte[] expected = new byte[COMPARE_BUFFER_SIZE];
+		InputStream in = new FileInputStream(target);
+		try {
+			DataInputStream source = new DataInputStream(payload.openStream());
+			try {
+				long remaining = payload.size();
+				int read;
+				while (remaining > 0 && (read = in.read(existing)) > 0) {
+					if (read > remaining)
+						return false;
+					source.readFully(expected, 0, read);
+					BinaryPayload.update(digests, expected, 0, read);
+					for (int i = 0; i < read; i++) {
+						if (existing[i] != expected[i])
+							return false;
+					}
+					remaining -= read;
+				}
+				return remaining == 0 && in.read() < 0;
+			} finally {
+				source.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * a written file waiting to be completed
+	 */
+	private static class PendingFile {
+		BinaryFileWriteJob job;
+		File target;
+		Path path;
+		Path temp;
+		long size;
+		String checksum;
+		IOException error;
+	}
+	
+	/**
+	 * the digests of a job, updated while its payload is read or written rather than each
+	 * of them reading the payload again
+	 */
+	private static class JobDigests {
+		MessageDigest checksum;
+		MessageDigest content;
+		MessageDigest manifest;
+		String manifestChecksum;
+		
+		MessageDigest[] all() {
+			return new MessageDigest[] { checksum, content, manifest };
+		}
+		
+		void reset() {
+			for (MessageDigest digest : all()) {
+				if (digest != null)
+					digest.reset();
+			}
+		}
+		
+		/**
+		 * stores the values of the digests updated with the whole payload, which are not updated any further
+		 */
+		void finish(BinaryFileWriteJob job) {
+			if (checksum != null)
+				job.checksum = BinaryChecksum.toHex(checksum.digest());
+			if (content != null)
+				job.contentHash = BinaryChecksum.toHex(content.digest());
+			if (manifest != null)
+				manifestChecksum = BinaryWriteManifest.checksum(manifest);
+			checksum = null;
+			content = null;
+			manifest = null;
+		}
+	}
+}
@@ -0,0 +1,262 @@
+package com.eulogix.kettle.steps.binary_file_output;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.zip.CRC32;
+
+/**
+ * The content to be written for a row: either a byte array carried by the row or
+ * a file the row points to. File sources are streamed, or copied by the kernel with
+ * transferTo(), so they never need to fit in the heap.
+ * 
+ * Digests can be updated while the payload is written, rather than each of them
+ * reading the whole content again.
+ */
+public abstract class BinaryPayload {
+
+	private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+	public static BinaryPayload of(byte[] content) {
+		return new BytesPayload(content);
+	}
+
+	public static BinaryPayload of(File source) {
+		return new FilePayload(source, false);
+	}
+
+	/**
+	 * a file created for this payload only, deleted when the payload is released
+	 */
+	public static BinaryPayload ofTemporary(File file) {
+		return new FilePayload(file, true);
+	}
+
+	public abstract long size() throws IOException;
+
+	/**
+	 * @return the bytes this payload keeps on the heap
+	 */
+	public long heapSize() {
+		return 0;
+	}
+
+	public abstract InputStream openStream() throws IOException;
+
+	/**
+	 * writes the whole payload at the current position of the channel
+	 * @param channel
+	 * @param bufferPool direct buffers for large in-memory payloads
+	 * @param digests updated with the bytes written, null ones are skipped
+	 * @throws IOException
+	 */
+	public abstract void writeTo(FileChannel channel, BinaryBufferPool bufferPool, MessageDigest... digests) throws IOException;
+
+	/**
+	 * called once the payload has been written
+	 */
+	public void release() {
+	}
+
+	public long crc32() throws IOException {
+		CRC32 crc = new CRC32();
+		InputStream in = openStream();
+		try {
+			byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+			int read;
+			while ((read = in.read(buffer)) > 0)
+				crc.update(buffer, 0, read);
+		} finally {
+			in.close();
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * @param digest a fresh digest
+	 * @return the digest of the whole payload
+	 * @throws IOException
+	 */
+	public byte[] digest(MessageDigest digest) throws IOException {
+		InputStream in = openStream();
+		try {
+			byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+			int read;
+			while ((read = in.read(buffer)) > 0)
+				digest.update(buffer, 0, read);
+		} finally {
+			in.close();
+		}
+		return digest.digest();
+	}
+
+	/**
+	 * reads the payload once, updating all the digests
+	 * @param digests null ones are skipped
+	 * @throws IOException
+	 */
+	public void update(MessageDigest... digests) throws IOException {
+		InputStream in = openStream();
+		try {
+			byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+			int read;
+			while ((read = in.read(buffer)) > 0)
+				update(digests, buffer, 0, read);
+		} finally {
+			in.close();
+		}
+	}
+
+	static void update(MessageDigest[] digests, byte[] buffer, int offset, int length) {
+		for (MessageDigest digest : digests) {
+			if (digest != null)
+				digest.update(buffer, offset, length);
+		}
+	}
+
+	static boolean hasDigest(MessageDigest[] digests) {
+		for (MessageDigest digest : digests) {
+			if (digest != null)
+				return true;
+		}
+		return false;
+	}
+
+	private static class BytesPayload extends BinaryPayload {
+
+		private byte[] content;
+
+		BytesPayload(byte[] content) {
+			this.content = content;
+		}
+
+		public long size() {
+			return content.length;
+		}
+
+		public long heapSize() {
+			return content.length;
+		}
+
+		public InputStream openStream() {
+			return new ByteArrayInputStream(content);
+		}
+
+		public long crc32() {
+			CRC32 crc = new CRC32();
+			crc.update(content);
+			return crc.getValue();
+		}
+
+		public byte[] digest(MessageDigest digest) {
+			return digest.digest(content);
+		}
+
+		public void update(MessageDigest... digests) {
+			update(digests, content, 0, content.length);
+		}
+
+		/**
+		 * small payloads are written straight from the array, large ones through a pooled direct buffer
+		 */
+		public void writeTo(FileChannel channel, BinaryBufferPool bufferPool, MessageDigest... digests) throws IOException {
+			if (bufferPool == null || content.length < bufferPool.getBufferSize()) {
+				update(digests, content, 0, content.length);
+				ByteBuffer source = ByteBuffer.wrap(content);
+				while (source.hasRemaining())
+					channel.write(source);
+				return;
+			}
+
+			ByteBuffer buffer = bufferPool.acquire();
+			try {
+				for (int offset = 0; offset < content.length; ) {
+					buffer.clear();
+					int length = Math.min(buffer.capacity(), content.length - offset);
+					update(digests, content, offset, length);
+					buffer.put(content, offset, length);
+					buffer.flip();
+					while (buffer.hasRemaining())
+						channel.write(buffer);
+					offset += length;
+				}
+			} finally {
+				bufferPool.release(buffer);
+			}
+		}
+	}
+
+	private static class FilePayload extends BinaryPayload {
+
+		private File source;
+		private boolean temporary;
+
+		FilePayload(File source, boolean temporary) {
+			this.source = source;
+			this.temporary = temporary;
+		}
+
+		public void release() {
+			if (temporary)
+				source.delete();
+		}
+
+		public long size() throws IOException {
+			if (!source.isFile())
+				throw new IOException("Source file " + source + " not found");
+			return source.length();
+		}
+
+		public InputStream openStream() throws IOException {
+			return new FileInputStream(source);
+		}
+
+		/**
+		 * the copy is done by the kernel, without passing through the heap, unless the bytes
+		 * must go through the digests: then they are copied buffer by buffer
+		 */
+		public void writeTo(FileChannel channel, BinaryBufferPool bufferPool, MessageDigest... digests) throws IOException {
+			FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+			try {
+				if (hasDigest(digests)) {
+					copy(in, channel, digests);
+					return;
+				}
+				long size = in.size();
+				long position = 0;
+				while (position < size) {
+					long transferred = in.transferTo(position, size - position, channel);
+					if (transferred <= 0 && position >= in.size())
+						throw new IOException("Source file " + source + " was truncated while copying");
+					position += transferred;
+				}
+			} finally {
+				in.close();
+			}
+		}
+
+		private void copy(FileChannel in, FileChannel channel, MessageDigest[] digests) throws IOException {
+			long size = in.size();
+			ByteBuffer buffer = ByteBuffer.allocate(STREAM_BUFFER_SIZE);
+			long position = 0;
+			while (position < size) {
+				buffer.clear();
+				buffer.limit((int) Math.min(buffer.capacity(), size - position));
+				int read = in.read(buffer);
+				if (read < 0)
+					throw new IOException("Source file " + source + " was truncated while copying");
+				update(digests, buffer.array(), 0, read);
+				buffer.flip();
+				while (buffer.hasRemaining())
+					channel.write(buffer);
+				position += read;
+			}
+		}
+	}
+}
@@ -0,0 +1,183 @@
+package com.eulogix.kettle.steps.binary_file_output;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only record of the files completely written, one "path TAB size TAB crc32"
+ * line per file, added only once the file is in place. A restarted run loads it and
+ * skips the rows whose target is already committed with the same content.
+ * 
+ * A crash can at most lose or truncate the last lines, in which case the
+ * corresponding files are simply written again.
+ */
+public class BinaryWriteManifest {
+
+	private File file;
+	private Map<String, String> committed = new HashMap<String, String>();
+	private Writer out;
+	private FileOutputStream stream;
+
+	public BinaryWriteManifest(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * loads the entries of previous runs and opens the manifest for appending
+	 * @throws IOException
+	 */
+	public synchronized void open() throws IOException {
+		if (file.isFile()) {
+			BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+			try {
+				String line;
+				while ((line = in.readLine()) != null) {
+					int tab = line.indexOf('\t');
+					// a truncated last line has no checksum and is ignored
+					if (tab > 0 && line.indexOf('\t', tab + 1) > 0)
+						committed.put(line.substring(0, tab), line.substring(tab + 1));
+				}
+			} finally {
+				in.close();
+			}
+		} else {
+			File parent = file.getAbsoluteFile().getParentFile();
+			if (!parent.isDirectory() && !parent.mkdirs())
+				throw new IOException("Unable to create folder " + parent);
+		}
+		stream = new FileOutputStream(file, true);
+		out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+		// a line cut by a crash must not swallow the first entry of this run
+		if (!endsWithNewLine())
+			out.write('\n');
+	}
+	
+	private boolean endsWithNewLine() throws IOException {
+		if (file.length() == 0)
+			return true;
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			in.seek(file.length() - 1);
+			return in.read() == '\n';
+		} finally {
+			in.close();
+		}
+	}
+
+	public static String checksum(BinaryPayload payload) throws IOException {
+		return Long.toHexString(payload.crc32());
+	}
+
+	/**
+	 * @return a fresh digest of the same checksum, to be updated while the file is written
+	 */
+	public static MessageDigest newDigest() {
+		return new Crc32Digest();
+	}
+
+	/**
+	 * @param digest a digest returned by newDigest()
+	 * @return the checksum of the bytes it was updated with
+	 */
+	public static String checksum(MessageDigest digest) {
+		byte[] crc = digest.digest();
+		return Long.toHexString((crc[0] & 0xffL) << 24 | (crc[1] & 0xffL) << 16 | (crc[2] & 0xffL) << 8 | (crc[3] & 0xffL));
+	}
+
+	/**
+	 * @return true if the target was committed with this size and still has it: only then
+	 * its checksum needs to be computed before writing
+	 */
+	public synchronized boolean hasEntry(File target, long size) {
+		String entry = committed.get(target.getPath());
+		return entry != null && entry.startsWith(size + "\t") && target.length() == size;
+	}
+
+	/**
+	 * @param target
+	 * @param size
+	 * @param checksum
+	 * @return true if the target was committed with the same content and is still there
+	 */
+	public synchronized boolean isCommitted(File target, long size, String checksum) {
+		String entry = committed.get(target.getPath());
+		return entry != null && entry.equals(size + "\t" + checksum) && target.length() == size;
+	}
+
+	/**
+	 * records a file and forces the manifest to disk, the file itself must be on disk already
+	 */
+	public synchronized void commit(File target, long size, String checksum) throws IOException {
+		add(target, size, checksum);
+		sync();
+	}
+
+	/**
+	 * records a file without forcing the manifest, for a group of files followed by a single sync()
+	 */
+	public synchronized void add(File target, long size, String checksum) throws IOException {
+		String entry = size + "\t" + checksum;
+		committed.put(target.getPath(), entry);
+		out.write(target.getPath() + "\t" + entry + "\n");
+		// handed to the OS on every line, so that only a machine crash can lose entries
+		out.flush();
+	}
+
+	/**
+	 * forces the entries added so far to disk
+	 */
+	public synchronized void sync() throws IOException {
+		out.flush();
+		stream.getChannel().force(false);
+	}
+
+	public synchronized void close() throws IOException {
+		if (out != null) {
+			out.close();
+			out = null;
+		}
+	}
+
+	/**
+	 * CRC32 as a MessageDigest, the digest is the CRC in big endian order
+	 */
+	private static class Crc32Digest extends MessageDigest {
+
+		private CRC32 crc = new CRC32();
+
+		Crc32Digest() {
+			super("CRC32");
+		}
+
+		protected void engineUpdate(byte input) {
+			crc.update(input);
+		}
+
+		protected void engineUpdate(byte[] input, int offset, int length) {
+			crc.update(input, offset, length);
+		}
+
+		protected byte[] engineDigest() {
+			long value = crc.getValue();
+			crc.reset();
+			return new byte[] { (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value };
+		}
+
+		protected void engineReset() {
+			crc.reset();
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package com.eulogix.kettle.steps.binary_file_output;
+
+import java.security.MessageDigest;
+
+/**
+ * CRC32C (Castagnoli), the checksum used by iSCSI, ext4 and most object stores,
+ * exposed as a MessageDigest so it can be used like MD5 or SHA-256. The JDK only
+ * provides it from Java 9; this is the table driven slicing-by-8 algorithm.
+ * The digest is the CRC in big endian order.
+ */
+public class Crc32cDigest extends MessageDigest {
+
+	private static final int POLYNOMIAL = 0x82F63B78;
+	private static final int[][] TABLES = new int[8][256];
+
+	static {
+		for (int i = 0; i < 256; i++) {
+			int crc = i;
+			for (int k = 0; k < 8; k++)
+				crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+			TABLES[0][i] = crc;
+		}
+		for (int i = 0; i < 256; i++) {
+			for (int t = 1; t < 8; t++)
+				TABLES[t][i] = (TABLES[t - 1][i] >>> 8) ^ TABLES[0][TABLES[t - 1][i] & 0xff];
+		}
+	}
+
+	private int crc = 0xffffffff;
+
+	public Crc32cDigest() {
+		super("CRC32C");
+	}
+
+	protected void engineUpdate(byte input) {
+		crc = (crc >>> 8) ^ TABLES[0][(crc ^ input) & 0xff];
+	}
+
+	protected void engineUpdate(byte[] input, int offset, int length) {
+		int[][] t = TABLES;
+		int c = crc;
+		while (length >= 8) {
+			int one = c ^ ((input[offset] & 0xff) | (input[offset + 1] & 0xff) << 8 | (input[offset + 2] & 0xff) << 16 | (input[offset + 3] & 0xff) << 24);
+			int two = (input[offset + 4] & 0xff) | (input[offset + 5] & 0xff) << 8 | (input[offset + 6] & 0xff) << 16 | (input[offset + 7] & 0xff) << 24;
+			c = t[7][one & 0xff] ^ t[6][(one >>> 8) & 0xff] ^ t[5][(one >>> 16) & 0xff] ^ t[4][one >>> 24]
+					^ t[3][two & 0xff] ^ t[2][(two >>> 8) & 0xff] ^ t[1][(two >>> 16) & 0xff] ^ t[0][two >>> 24];
+			offset += 8;
+			length -= 8;
+		}
+		while (length-- > 0)
+			c = (c >>> 8) ^ t[0][(c ^ input[offset++]) & 0xff];
+		crc = c;
+	}
+
+	protected byte[] engineDigest() {
+		int value = ~crc;
+		engineReset();
+		return new byte[] { (byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value };
+	}
+
+	protected void engineReset() {
+		crc = 0xffffffff;
+	}
+
+	protected int engineGetDigestLength() {
+		return 4;
+	}
+}
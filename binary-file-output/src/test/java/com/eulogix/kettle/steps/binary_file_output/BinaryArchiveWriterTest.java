@@ -0,0 +1,320 @@
+package com.eulogix.kettle.steps.binary_file_output;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BinaryArchiveWriterTest {
+
+	private File folder;
+
+	@Before
+	public void setUp() throws IOException {
+		folder = Files.createTempDirectory("binary-archive").toFile();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(folder);
+	}
+
+	private String basePath() {
+		return new File(folder, "out/archive").getPath();
+	}
+
+	private static byte[] content(int size, int seed) {
+		byte[] content = new byte[size];
+		for (int i = 0; i < size; i++)
+			content[i] = (byte) (i * 31 + seed);
+		return content;
+	}
+
+	private static String crc(byte[] content) {
+		CRC32 crc = new CRC32();
+		crc.update(content);
+		return Long.toHexString(crc.getValue());
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) > 0)
+			out.write(buffer, 0, read);
+		in.close();
+		return out.toByteArray();
+	}
+
+	private static Map<String, byte[]> readZip(File file) throws IOException {
+		Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+		ZipFile zip = new ZipFile(file);
+		try {
+			for (ZipEntry entry : java.util.Collections.list(zip.entries()))
+				entries.put(entry.getName(), readAll(zip.getInputStream(entry)));
+		} finally {
+			zip.close();
+		}
+		return entries;
+	}
+
+	/**
+	 * minimal ustar reader, with GNU long names, checking the header checksums and the end of archive
+	 */
+	private static Map<String, byte[]> readTar(File file) throws IOException {
+		byte[] tar = Files.readAllBytes(file.toPath());
+		assertEquals(0, tar.length % 512);
+		Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+		String longName = null;
+		int offset = 0;
+		while (true) {
+			byte[] header = Arrays.copyOfRange(tar, offset, offset + 512);
+			if (Arrays.equals(header, new byte[512])) {
+				assertArrayEquals(new byte[512], Arrays.copyOfRange(tar, offset + 512, offset + 1024));
+				return entries;
+			}
+
+			long checksum = 0;
+			for (int i = 0; i < 512; i++)
+				checksum += i >= 148 && i < 156 ? ' ' : header[i] & 0xff;
+			assertEquals(checksum, octal(header, 148, 8));
+			assertEquals("ustar", string(header, 257, 6));
+
+			String name = string(header, 0, 100);
+			String prefix = string(header, 345, 155);
+			long size = octal(header, 124, 12);
+			byte[] data = Arrays.copyOfRange(tar, offset + 512, offset + 512 + (int) size);
+			offset += 512 + (int) ((size + 511) / 512 * 512);
+
+			if (header[156] == 'L') {
+				longName = string(data, 0, data.length);
+				continue;
+			}
+			assertEquals('0', header[156]);
+			entries.put(longName != null ? longName : prefix.isEmpty() ? name : prefix + "/" + name, data);
+			longName = null;
+		}
+	}
+
+	private static String string(byte[] bytes, int offset, int length) {
+		int end = offset;
+		while (end < offset + length && bytes[end] != 0)
+			end++;
+		return new String(bytes, offset, end - offset, StandardCharsets.UTF_8);
+	}
+
+	private static long octal(byte[] header, int offset, int length) {
+		return Long.parseLong(string(header, offset, length).trim(), 8);
+	}
+
+	@Test
+	public void zipEntriesAndManifestReadBack() throws IOException {
+		byte[] text = content(100000, 1);
+		byte[] image = content(5000, 2);
+		BinaryArchiveWriter writer = new BinaryArchiveWriter(basePath(), BinaryArchiveWriter.FORMAT_ZIP, 0, "jpg, PNG");
+		String container = writer.add("docs/a.txt", BinaryPayload.of(text));
+		assertEquals(container, writer.add("images/b.PNG", BinaryPayload.of(image)));
+		writer.close();
+
+		assertEquals(new File(basePath() + "-00001.zip").getPath(), container);
+		ZipFile zip = new ZipFile(container);
+		try {
+			assertEquals(ZipEntry.DEFLATED, zip.getEntry("docs/a.txt").getMethod());
+			assertEquals(ZipEntry.STORED, zip.getEntry("images/b.PNG").getMethod());
+		} finally {
+			zip.close();
+		}
+
+		Map<String, byte[]> entries = readZip(new File(container));
+		assertEquals(Arrays.asList("docs/a.txt", "images/b.PNG", BinaryArchiveWriter.MANIFEST_ENTRY), new java.util.ArrayList<String>(entries.keySet()));
+		assertArrayEquals(text, entries.get("docs/a.txt"));
+		assertArrayEquals(image, entries.get("images/b.PNG"));
+		assertEquals("docs/a.txt\t100000\t" + crc(text) + "\nimages/b.PNG\t5000\t" + crc(image) + "\n",
+				new String(entries.get(BinaryArchiveWriter.MANIFEST_ENTRY), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void tarEntriesAndManifestReadBack() throws IOException {
+		byte[] first = content(1000, 3);
+		byte[] empty = new byte[0];
+		byte[] aligned = content(1024, 4);
+		BinaryArchiveWriter writer = new BinaryArchiveWriter(basePath(), BinaryArchiveWriter.FORMAT_TAR, 0, "");
+		String container = writer.add("a/first.bin", BinaryPayload.of(first));
+		writer.add("empty.bin", BinaryPayload.of(empty));
+		writer.add("aligned.bin", BinaryPayload.of(aligned));
+		writer.close();
+
+		Map<String, byte[]> entries = readTar(new File(container));
+		assertArrayEquals(first, entries.get("a/first.bin"));
+		assertArrayEquals(empty, entries.get("empty.bin"));
+		assertArrayEquals(aligned, entries.get("aligned.bin"));
+		assertEquals("a/first.bin\t1000\t" + crc(first) + "\nempty.bin\t0\t" + crc(empty) + "\naligned.bin\t1024\t" + crc(aligned) + "\n",
+				new String(entries.get(BinaryArchiveWriter.MANIFEST_ENTRY), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void longTarNamesUsePrefixOrGnuLongName() throws IOException {
+		char[] fill = new char[90];
+		Arrays.fill(fill, 'd');
+		String folderName = new String(fill);
+		Arrays.fill(fill, 'f');
+		String fileName = new String(fill);
+		// fits in prefix + name
+		String splittable = folderName + "/" + folderName + "/" + fileName + ".bin";
+		// a single name longer than 100 bytes cannot be split
+		String unsplittable = "x/" + fileName + fileName + ".bin";
+		// multi byte characters count in bytes
+		String accented = "docs/" + new String(new char[60]).replace('\0', '\u00e8') + ".txt";
+
+		BinaryArchiveWriter writer = new BinaryArchiveWriter(basePath(), BinaryArchiveWriter.FORMAT_TAR, 0, "");
+		String container = writer.add(splittable, BinaryPayload.of(content(10, 5)));
+		writer.add(unsplittable, BinaryPayload.of(content(20, 6)));
+		writer.add(accented, BinaryPayload.of(content(30, 7)));
+		writer.close();
+
+		Map<String, byte[]> entries = readTar(new File(container));
+		assertArrayEquals(content(10, 5), entries.get(splittable));
+		assertArrayEquals(content(20, 6), entries.get(unsplittable));
+		assertArrayEquals(content(30, 7), entries.get(accented));
+	}
+
+	@Test
+	public void containersRollOverAtTheMaximumSize() throws IOException {
+		BinaryArchiveWriter writer = new BinaryArchiveWriter(basePath(), BinaryArchiveWriter.FORMAT_TAR, 3000, "");
+		String first = writer.add("1.bin", BinaryPayload.of(content(1500, 1)));
+		assertEquals(first, writer.add("2.bin", BinaryPayload.of(content(500, 2))));
+		String second = writer.add("3.bin", BinaryPayload.of(content(1500, 3)));
+		// bigger than the maximum: alone in its own container
+		String third = writer.add("4.bin", BinaryPayload.of(content(5000, 4)));
+		writer.close();
+
+		assertEquals(new File(basePath() + "-00002.tar").getPath(), second);
+		assertEquals(new File(basePath() + "-00003.tar").getPath(), third);
+		assertEquals(Arrays.asList("1.bin", "2.bin", BinaryArchiveWriter.MANIFEST_ENTRY), new java.util.ArrayList<String>(readTar(new File(first)).keySet()));
+		assertEquals(Arrays.asList("3.bin", BinaryArchiveWriter.MANIFEST_ENTRY), new java.util.ArrayList<String>(readTar(new File(second)).keySet()));
+		assertArrayEquals(content(5000, 4), readTar(new File(third)).get("4.bin"));
+		assertFalse(new File(basePath() + "-00004.tar").exists());
+	}
+
+	@Test
+	public void entryPathsAreMadeRelative() throws IOException {
+		BinaryArchiveWriter writer = new BinaryArchiveWriter(basePath(), BinaryArchiveWriter.FORMAT_ZIP, 0, "");
+		String container = writer.add("C:\\data\\a.txt", BinaryPayload.of(content(1, 1)));
+		writer.add("/abs/b.txt", BinaryPayload.of(content(1, 2)));
+		writer.add("./rel/c.txt", BinaryPayload.of(content(1, 3)));
+		writer.close();
+
+		Map<String, byte[]> entries = readZip(new File(container));
+		assertTrue(entries.containsKey("data/a.txt"));
+		assertTrue(entries.containsKey("abs/b.txt"));
+		assertTrue(entries.containsKey("rel/c.txt"));
+	}
+
+	/**
+	 * a payload whose content cannot be read past its first bytes
+	 */
+	private static BinaryPayload failing(final int size) {
+		return new BinaryPayload() {
+			@Override
+			public long size() {
+				return size;
+			}
+
+			@Override
+			public InputStream openStream() {
+				return new InputStream() {
+					private int read;
+
+					@Override
+					public int read() throws IOException {
+						if (read++ >= size / 2)
+							throw new IOException("source unreadable");
+						return 0;
+					}
+				};
+			}
+
+			@Override
+			public void writeTo(FileChannel channel, BinaryBufferPool bufferPool, MessageDigest... digests) throws IOException {
+				throw new IOException("source unreadable");
+			}
+		};
+	}
+
+	private void aFailedEntryMovesOnToANewContainer(String format) throws IOException {
+		BinaryArchiveWriter writer = new BinaryArchiveWriter(basePath(), format, 0, "");
+		String first = writer.add("a.bin", BinaryPayload.of(content(100, 1)));
+		try {
+			writer.add("b.bin", failing(2000));
+			fail("the entry cannot be read");
+		} catch (IOException e) {
+			// the row fails
+		}
+		String second = writer.add("c.bin", BinaryPayload.of(content(100, 3)));
+		writer.close();
+
+		assertFalse(new File(first).exists());
+		assertTrue(new File(first + ".broken").isFile());
+		assertEquals(new File(basePath() + "-00002." + format).getPath(), second);
+		Map<String, byte[]> entries = BinaryArchiveWriter.FORMAT_ZIP.equals(format) ? readZip(new File(second)) : readTar(new File(second));
+		assertEquals(Arrays.asList("c.bin", BinaryArchiveWriter.MANIFEST_ENTRY), new java.util.ArrayList<String>(entries.keySet()));
+	}
+
+	@Test
+	public void aFailedZipEntryMovesOnToANewContainer() throws IOException {
+		aFailedEntryMovesOnToANewContainer(BinaryArchiveWriter.FORMAT_ZIP);
+	}
+
+	@Test
+	public void aFailedTarEntryMovesOnToANewContainer() throws IOException {
+		aFailedEntryMovesOnToANewContainer(BinaryArchiveWriter.FORMAT_TAR);
+	}
+
+	@Test
+	public void rejectedEntriesLeaveTheContainerIntact() throws IOException {
+		BinaryArchiveWriter writer = new BinaryArchiveWriter(basePath(), BinaryArchiveWriter.FORMAT_ZIP, 0, "");
+		String container = writer.add("a.bin", BinaryPayload.of(content(10, 1)));
+		for (String path : new String[] { "/" + BinaryArchiveWriter.MANIFEST_ENTRY, "a.bin" }) {
+			try {
+				writer.add(path, BinaryPayload.of(content(10, 2)));
+				fail(path + " is already in the container");
+			} catch (IOException e) {
+				// the row fails
+			}
+		}
+		assertEquals(container, writer.add("b.bin", BinaryPayload.of(content(10, 3))));
+		writer.close();
+
+		Map<String, byte[]> entries = readZip(new File(container));
+		assertEquals(Arrays.asList("a.bin", "b.bin", BinaryArchiveWriter.MANIFEST_ENTRY), new java.util.ArrayList<String>(entries.keySet()));
+		assertArrayEquals(content(10, 1), entries.get("a.bin"));
+	}
+
+	@Test
+	public void closingWithoutEntriesWritesNothing() throws IOException {
+		BinaryArchiveWriter writer = new BinaryArchiveWriter(basePath(), BinaryArchiveWriter.FORMAT_ZIP, 0, "");
+		writer.close();
+		assertFalse(new File(basePath() + "-00001.zip").exists());
+	}
+}
@@ -0,0 +1,127 @@
+package com.eulogix.kettle.steps.binary_file_output;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BinaryChunkAppenderTest {
+
+	private File folder;
+	private BinaryBufferPool bufferPool;
+	private BinaryChunkAppender appender;
+
+	@Before
+	public void setUp() throws IOException {
+		folder = Files.createTempDirectory("binary-chunks").toFile();
+		bufferPool = new BinaryBufferPool(64 * 1024, 1);
+		appender = new BinaryChunkAppender(2, BinaryFileWriter.DURABILITY_NONE);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		appender.close();
+		FileUtils.deleteDirectory(folder);
+	}
+
+	private File file(String name) {
+		return new File(folder, name);
+	}
+
+	private void append(String name, String content, Long chunkIndex, boolean lastChunk) throws IOException {
+		appender.append(file(name), BinaryPayload.of(content.getBytes(StandardCharsets.UTF_8)), chunkIndex, lastChunk, bufferPool);
+	}
+
+	private void assertContent(String expected, String name) throws IOException {
+		assertArrayEquals(expected.getBytes(StandardCharsets.UTF_8), Files.readAllBytes(file(name).toPath()));
+	}
+
+	private void assertFails(String name, String content, Long chunkIndex, boolean lastChunk) {
+		try {
+			append(name, content, chunkIndex, lastChunk);
+			fail("chunk " + chunkIndex + " of " + name + " should have failed");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void chunksAreAppendedAcrossEvictions() throws IOException {
+		append("a", "a0", 0L, false);
+		append("b", "b0", 0L, false);
+		// a third file evicts the first one
+		append("c", "c0", 0L, false);
+		append("a", "a1", 1L, false);
+		append("b", "b1", 1L, true);
+		appender.close();
+		assertContent("a0a1", "a");
+		assertContent("b0b1", "b");
+		assertContent("c0", "c");
+	}
+
+	@Test
+	public void theFirstChunkTruncatesPreviousOutput() throws IOException {
+		Files.write(file("a").toPath(), "old content".getBytes(StandardCharsets.UTF_8));
+		append("a", "new", null, false);
+		append("a", "er", null, true);
+		assertContent("newer", "a");
+	}
+
+	@Test
+	public void aTargetCanBeWrittenAgainAfterItsLastChunk() throws IOException {
+		append("a", "first", 0L, true);
+		append("a", "second", 0L, true);
+		assertContent("second", "a");
+	}
+
+	@Test
+	public void anOutOfOrderChunkDeletesAndFailsItsTarget() throws IOException {
+		append("a", "a0", 0L, false);
+		append("b", "b0", 0L, false);
+		assertFails("a", "a2", 2L, false);
+		assertFalse(file("a").exists());
+		// the chunk that was missing does not bring the target back
+		assertFails("a", "a1", 1L, false);
+		assertFails("a", "a3", 3L, true);
+		assertFalse(file("a").exists());
+
+		// other targets are not affected, and the failed one can start over
+		append("b", "b1", 1L, true);
+		assertContent("b0b1", "b");
+		append("a", "again", 0L, true);
+		assertContent("again", "a");
+	}
+
+	@Test
+	public void aDuplicateChunkDeletesAndFailsItsTarget() throws IOException {
+		append("a", "a0", 0L, false);
+		append("a", "a1", 1L, false);
+		assertFails("a", "a1", 1L, false);
+		assertFalse(file("a").exists());
+		assertFails("a", "a2", 2L, true);
+		assertFalse(file("a").exists());
+	}
+
+	@Test
+	public void aFailedWriteDeletesTheTarget() throws IOException {
+		append("a", "a0", 0L, false);
+		File source = file("missing");
+		try {
+			appender.append(file("a"), BinaryPayload.of(source), 1L, false, bufferPool);
+			fail("a chunk with a missing source should have failed");
+		} catch (IOException e) {
+			// expected
+		}
+		assertFalse(file("a").exists());
+		assertFails("a", "a2", 2L, true);
+	}
+}
@@ -0,0 +1,179 @@
+package com.eulogix.kettle.steps.binary_file_output;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class BinaryCompressorTest {
+
+	private BinaryCompressor compressor;
+
+	@After
+	public void tearDown() {
+		if (compressor != null)
+			compressor.shutdown();
+	}
+
+	/**
+	 * half text-like, half random, so that blocks have both matches and literals
+	 */
+	private static byte[] content(int size, long seed) {
+		byte[] content = new byte[size];
+		Random random = new Random(seed);
+		for (int i = 0; i < size; i++)
+			content[i] = (i / 1000) % 2 == 0 ? (byte) ('a' + i % 7) : (byte) random.nextInt();
+		return content;
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int read;
+		while ((read = in.read(buffer)) > 0)
+			out.write(buffer, 0, read);
+		in.close();
+		return out.toByteArray();
+	}
+
+	private byte[] compress(byte[] content) throws IOException {
+		BinaryPayload compressed = compressor.compress(BinaryPayload.of(content));
+		try {
+			return readAll(compressed.openStream());
+		} finally {
+			compressed.release();
+		}
+	}
+
+	private static byte[] gunzip(byte[] gzip) throws IOException {
+		return readAll(new GZIPInputStream(new ByteArrayInputStream(gzip)));
+	}
+
+	private static byte[] inflate(byte[] deflate) throws DataFormatException {
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(deflate);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			while (!inflater.finished()) {
+				int length = inflater.inflate(buffer);
+				if (length == 0 && inflater.needsInput() && !inflater.finished())
+					throw new DataFormatException("truncated deflate stream");
+				out.write(buffer, 0, length);
+			}
+			assertEquals("trailing bytes after the deflate stream", 0, inflater.getRemaining());
+			return out.toByteArray();
+		} finally {
+			inflater.end();
+		}
+	}
+
+	@Test
+	public void gzipRoundTrips() throws IOException {
+		compressor = new BinaryCompressor(BinaryCompressor.FORMAT_GZIP, 1, "");
+		for (int size : new int[] { 0, 1, 1000, 128 * 1024, 128 * 1024 + 1, 1000000 }) {
+			byte[] content = content(size, size);
+			assertArrayEquals("size " + size, content, gunzip(compress(content)));
+		}
+	}
+
+	@Test
+	public void deflateRoundTripsAsASingleRawStream() throws Exception {
+		compressor = new BinaryCompressor(BinaryCompressor.FORMAT_DEFLATE, 1, "");
+		for (int size : new int[] { 0, 1000, 3 * 128 * 1024 + 17 }) {
+			byte[] content = content(size, size);
+			assertArrayEquals("size " + size, content, inflate(compress(content)));
+		}
+	}
+
+	@Test
+	public void blocksUseThePreviousBlockAsDictionary() throws IOException {
+		compressor = new BinaryCompressor(BinaryCompressor.FORMAT_GZIP, 1, "");
+		// random blocks, the second one starting with the last 16K of the first: those are all matches
+		byte[] content = new byte[2 * 128 * 1024];
+		new Random(1).nextBytes(content);
+		System.arraycopy(content, 112 * 1024, content, 128 * 1024, 16 * 1024);
+
+		byte[] compressed = compress(content);
+		assertArrayEquals(content, gunzip(compressed));
+		assertTrue("compressed size " + compressed.length, compressed.length < (128 + 112 + 2) * 1024);
+	}
+
+	@Test
+	public void threadsProduceTheSameOutput() throws Exception {
+		byte[] content = content(2000000, 7);
+		compressor = new BinaryCompressor(BinaryCompressor.FORMAT_GZIP, 1, "");
+		byte[] sequential = compress(content);
+		compressor.shutdown();
+		compressor = new BinaryCompressor(BinaryCompressor.FORMAT_GZIP, 4, "");
+		assertArrayEquals(sequential, compress(content));
+		assertArrayEquals(content, gunzip(sequential));
+
+		compressor.shutdown();
+		compressor = new BinaryCompressor(BinaryCompressor.FORMAT_DEFLATE, 3, "");
+		assertArrayEquals(content, inflate(compress(content)));
+	}
+
+	@Test
+	public void concatenatedGzipPayloadsAreOneFile() throws IOException {
+		// what appending compressed chunks to the same target produces
+		compressor = new BinaryCompressor(BinaryCompressor.FORMAT_GZIP, 1, "");
+		byte[] first = content(200000, 1);
+		byte[] second = content(5000, 2);
+		ByteArrayOutputStream file = new ByteArrayOutputStream();
+		file.write(compress(first));
+		file.write(compress(second));
+
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		expected.write(first);
+		expected.write(second);
+		assertArrayEquals(expected.toByteArray(), gunzip(file.toByteArray()));
+	}
+
+	@Test
+	public void largeOutputsSpillToATemporaryFile() throws IOException {
+		compressor = new BinaryCompressor(BinaryCompressor.FORMAT_GZIP, 2, "");
+		byte[] content = new byte[17 * 1024 * 1024];
+		new Random(3).nextBytes(content);
+		File source = File.createTempFile("binary-compressor", ".bin");
+		try {
+			Files.write(source.toPath(), content);
+			BinaryPayload compressed = compressor.compress(BinaryPayload.of(source));
+			assertEquals("kept off the heap", 0, compressed.heapSize());
+			try {
+				assertArrayEquals(content, readAll(new GZIPInputStream(compressed.openStream())));
+			} finally {
+				compressed.release();
+			}
+		} finally {
+			source.delete();
+		}
+	}
+
+	@Test
+	public void skippedExtensionsAreCaseInsensitive() {
+		compressor = new BinaryCompressor(BinaryCompressor.FORMAT_GZIP, 1, "zip, JPG,,gz");
+		assertFalse(compressor.appliesTo("a.zip"));
+		assertFalse(compressor.appliesTo("photo.jpg"));
+		assertFalse(compressor.appliesTo("ARCHIVE.TAR.GZ"));
+		assertTrue(compressor.appliesTo("notes.txt"));
+		assertTrue(compressor.appliesTo("zip"));
+		assertTrue(compressor.appliesTo("a.zip.txt"));
+		assertEquals(".gz", compressor.getExtension());
+		assertEquals(".deflate", new BinaryCompressor(BinaryCompressor.FORMAT_DEFLATE, 1, "").getExtension());
+	}
+}
@@ -0,0 +1,76 @@
+package com.eulogix.kettle.steps.binary_file_output;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BinaryDedupeStoreTest {
+
+	private File folder;
+	private File storeFolder;
+	private BinaryDedupeStore store;
+
+	@Before
+	public void setUp() throws IOException {
+		folder = Files.createTempDirectory("binary-dedupe").toFile();
+		storeFolder = new File(folder, "store");
+		store = new BinaryDedupeStore(storeFolder.getPath(), BinaryDedupeStore.LINK_HARD);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(folder);
+	}
+
+	private static byte[] bytes(String content) {
+		return content.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private void place(File target, String content) throws IOException {
+		BinaryPayload payload = BinaryPayload.of(bytes(content));
+		store.place(target, payload, BinaryDedupeStore.hash(payload));
+	}
+
+	private Path stored(String content) throws IOException {
+		String hash = BinaryDedupeStore.hash(BinaryPayload.of(bytes(content)));
+		return storeFolder.toPath().resolve(hash.substring(0, 2)).resolve(hash.substring(2, 4)).resolve(hash);
+	}
+
+	@Test
+	public void replacingATargetLeavesItsStoredCopyAlone() throws IOException {
+		File first = new File(folder, "a.txt");
+		File second = new File(folder, "b.txt");
+		place(first, "one");
+		place(second, "one");
+		place(first, "two");
+
+		assertArrayEquals(bytes("two"), Files.readAllBytes(first.toPath()));
+		assertArrayEquals(bytes("one"), Files.readAllBytes(second.toPath()));
+		assertArrayEquals(bytes("one"), Files.readAllBytes(stored("one")));
+		// no temporary link left behind
+		assertEquals(2, folder.list().length - 1);
+	}
+
+	@Test
+	public void aStoredCopyOfAnotherSizeIsWrittenAgain() throws IOException {
+		Path stored = stored("content");
+		Files.createDirectories(stored.getParent());
+		Files.write(stored, bytes("cont"));
+
+		File target = new File(folder, "a.txt");
+		place(target, "content");
+		assertArrayEquals(bytes("content"), Files.readAllBytes(target.toPath()));
+		assertArrayEquals(bytes("content"), Files.readAllBytes(stored));
+		assertEquals(1, stored.getParent().toFile().list().length);
+	}
+}
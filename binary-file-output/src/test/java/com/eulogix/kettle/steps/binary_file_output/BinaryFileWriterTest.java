@@ -0,0 +1,173 @@
+package com.eulogix.kettle.steps.binary_file_output;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BinaryFileWriterTest {
+
+	private File folder;
+	private BinaryFileWriter writer;
+
+	@Before
+	public void setUp() throws IOException {
+		folder = Files.createTempDirectory("binary-writer").toFile();
+		writer = new BinaryFileWriter();
+		writer.durability = BinaryFileWriter.DURABILITY_GROUP;
+		writer.groupSyncFiles = 3;
+		writer.groupSyncMillis = 60000;
+		writer.atomic = true;
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		writer.close();
+		FileUtils.deleteDirectory(folder);
+	}
+
+	private BinaryFileWriteJob write(String name) {
+		BinaryFileWriteJob job = new BinaryFileWriteJob(writer, new Object[0], new File(folder, name), BinaryPayload.of(name.getBytes()));
+		return job.call();
+	}
+
+	private String[] tempFiles() {
+		return folder.list(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(".part");
+			}
+		});
+	}
+
+	@Test
+	public void filesArePendingUntilTheirGroupIsSynced() throws IOException {
+		BinaryFileWriteJob first = write("a.bin");
+		BinaryFileWriteJob second = write("b.bin");
+
+		// written but neither forced nor renamed yet: the rows must be held
+		assertTrue(first.isSyncPending());
+		assertTrue(second.isSyncPending());
+		assertFalse(new File(folder, "a.bin").exists());
+		assertEquals(2, tempFiles().length);
+
+		BinaryFileWriteJob third = write("c.bin");
+		assertFalse(first.isSyncPending());
+		assertFalse(second.isSyncPending());
+		assertFalse(third.isSyncPending());
+		assertArrayEquals("a.bin".getBytes(), Files.readAllBytes(new File(folder, "a.bin").toPath()));
+		assertTrue(new File(folder, "c.bin").isFile());
+		assertEquals(0, tempFiles().length);
+	}
+
+	@Test
+	public void groupsAreSyncedAfterTheDelay() throws Exception {
+		writer.groupSyncFiles = 100;
+		writer.groupSyncMillis = 50;
+		BinaryFileWriteJob job = write("a.bin");
+
+		long deadline = System.currentTimeMillis() + 5000;
+		while (job.isSyncPending() && System.currentTimeMillis() < deadline)
+			Thread.sleep(10);
+		assertFalse(job.isSyncPending());
+		assertTrue(new File(folder, "a.bin").isFile());
+	}
+
+	@Test
+	public void aFailedSyncOnlyFailsItsOwnFile() throws IOException {
+		BinaryFileWriteJob first = write("a.bin");
+		BinaryFileWriteJob second = write("b.bin");
+		// the temporary file of the first one disappears before the sync
+		for (String name : tempFiles()) {
+			if (name.startsWith(".a.bin."))
+				Files.delete(new File(folder, name).toPath());
+		}
+		writer.flush();
+
+		assertFalse(first.isSyncPending());
+		first.applySyncOutcome();
+		assertFalse(first.created);
+		assertEquals(BinaryFileWriteJob.STATUS_FAILED, first.status);
+		assertNotNull(first.error);
+
+		second.applySyncOutcome();
+		assertTrue(second.created);
+		assertEquals(BinaryFileWriteJob.STATUS_WRITTEN, second.status);
+		assertNull(second.error);
+		assertTrue(new File(folder, "b.bin").isFile());
+	}
+
+	@Test
+	public void otherDurabilitiesDoNotHoldRows() {
+		writer.durability = BinaryFileWriter.DURABILITY_FILE;
+		BinaryFileWriteJob job = write("a.bin");
+		assertFalse(job.isSyncPending());
+		assertTrue(new File(folder, "a.bin").isFile());
+	}
+
+	private BinaryFileWriteJob write(String name, BinaryPayload payload) {
+		return new BinaryFileWriteJob(writer, new Object[0], new File(folder, name), payload).call();
+	}
+
+	private static String sha256(File file) throws IOException {
+		return new BinaryChecksum(BinaryChecksum.SHA256).compute(BinaryPayload.of(Files.readAllBytes(file.toPath())));
+	}
+
+	@Test
+	public void digestsAreComputedWhileWriting() throws IOException {
+		writer.durability = BinaryFileWriter.DURABILITY_NONE;
+		writer.checksum = new BinaryChecksum(BinaryChecksum.SHA256);
+		writer.bufferPool = new BinaryBufferPool(1024, 1);
+		writer.manifest = new BinaryWriteManifest(new File(folder, "manifest.tsv"));
+		writer.manifest.open();
+
+		byte[] content = new byte[100000];
+		new Random(1).nextBytes(content);
+		File source = new File(folder, "source.bin");
+		Files.write(source.toPath(), content);
+
+		// from the array, through pooled buffers, and copied from a file
+		BinaryFileWriteJob small = write("small.bin", BinaryPayload.of(new byte[] { 1, 2, 3 }));
+		BinaryFileWriteJob pooled = write("pooled.bin", BinaryPayload.of(content));
+		BinaryFileWriteJob copied = write("copied.bin", BinaryPayload.of(source));
+		for (BinaryFileWriteJob job : new BinaryFileWriteJob[] { small, pooled, copied }) {
+			assertEquals(BinaryFileWriteJob.STATUS_WRITTEN, job.status);
+			assertEquals(sha256(job.target), job.checksum);
+		}
+		assertTrue(writer.manifest.isCommitted(copied.target, content.length, BinaryWriteManifest.checksum(BinaryPayload.of(content))));
+
+		// skipped by the manifest, still with its checksum
+		BinaryFileWriteJob skipped = write("copied.bin", BinaryPayload.of(source));
+		assertEquals(BinaryFileWriteJob.STATUS_SKIPPED, skipped.status);
+		assertEquals(copied.checksum, skipped.checksum);
+	}
+
+	@Test
+	public void incrementalWritesKeepTheirChecksum() throws IOException {
+		writer.durability = BinaryFileWriter.DURABILITY_NONE;
+		writer.checksum = new BinaryChecksum(BinaryChecksum.CRC32C);
+		writer.incremental = true;
+		write("a.bin", BinaryPayload.of(new byte[] { 1, 2, 3 }));
+
+		BinaryFileWriteJob same = write("a.bin", BinaryPayload.of(new byte[] { 1, 2, 3 }));
+		assertEquals(BinaryFileWriteJob.STATUS_SKIPPED, same.status);
+		assertEquals(new BinaryChecksum(BinaryChecksum.CRC32C).compute(BinaryPayload.of(new byte[] { 1, 2, 3 })), same.checksum);
+
+		// the bytes compared before finding the difference are not counted twice
+		BinaryFileWriteJob other = write("a.bin", BinaryPayload.of(new byte[] { 1, 2, 4 }));
+		assertEquals(BinaryFileWriteJob.STATUS_REPLACED, other.status);
+		assertEquals(new BinaryChecksum(BinaryChecksum.CRC32C).compute(BinaryPayload.of(new byte[] { 1, 2, 4 })), other.checksum);
+	}
+}
@@ -0,0 +1,149 @@
+package com.eulogix.kettle.steps.binary_file_output;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BinaryWriteManifestTest {
+
+	private File folder;
+	private File manifestFile;
+
+	@Before
+	public void setUp() throws IOException {
+		folder = Files.createTempDirectory("binary-manifest").toFile();
+		manifestFile = new File(folder, "state/manifest.tsv");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(folder);
+	}
+
+	private File target(String name, int size) throws IOException {
+		File target = new File(folder, name);
+		Files.write(target.toPath(), new byte[size]);
+		return target;
+	}
+
+	private BinaryWriteManifest open() throws IOException {
+		BinaryWriteManifest manifest = new BinaryWriteManifest(manifestFile);
+		manifest.open();
+		return manifest;
+	}
+
+	@Test
+	public void checksumIsTheHexCrc32() throws IOException {
+		byte[] content = "hello".getBytes(StandardCharsets.UTF_8);
+		CRC32 crc = new CRC32();
+		crc.update(content);
+		assertEquals(Long.toHexString(crc.getValue()), BinaryWriteManifest.checksum(BinaryPayload.of(content)));
+	}
+
+	@Test
+	public void commitsAreSeenByTheNextRun() throws IOException {
+		File target = target("a.bin", 10);
+		BinaryWriteManifest manifest = open();
+		assertFalse(manifest.isCommitted(target, 10, "abc"));
+		manifest.commit(target, 10, "abc");
+		assertTrue(manifest.isCommitted(target, 10, "abc"));
+		manifest.close();
+
+		manifest = open();
+		assertTrue(manifest.isCommitted(target, 10, "abc"));
+		// other content for the same target
+		assertFalse(manifest.isCommitted(target, 10, "abd"));
+		assertFalse(manifest.isCommitted(target, 11, "abc"));
+		manifest.close();
+	}
+
+	@Test
+	public void missingOrResizedTargetsAreNotCommitted() throws IOException {
+		File target = target("a.bin", 10);
+		BinaryWriteManifest manifest = open();
+		manifest.commit(target, 10, "abc");
+		manifest.close();
+
+		Files.write(target.toPath(), new byte[5]);
+		manifest = open();
+		assertFalse(manifest.isCommitted(target, 10, "abc"));
+		Files.delete(target.toPath());
+		assertFalse(manifest.isCommitted(target, 10, "abc"));
+		manifest.close();
+	}
+
+	@Test
+	public void laterCommitsOfATargetWin() throws IOException {
+		File target = target("a.bin", 10);
+		BinaryWriteManifest manifest = open();
+		manifest.commit(target, 10, "abc");
+		manifest.commit(target, 10, "def");
+		manifest.close();
+
+		manifest = open();
+		assertFalse(manifest.isCommitted(target, 10, "abc"));
+		assertTrue(manifest.isCommitted(target, 10, "def"));
+		manifest.close();
+	}
+
+	@Test
+	public void aTruncatedLastLineIsIgnoredAndDoesNotCorruptTheNextEntry() throws IOException {
+		File first = target("a.bin", 10);
+		File second = target("b.bin", 20);
+		File third = target("c.bin", 30);
+		BinaryWriteManifest manifest = open();
+		manifest.commit(first, 10, "abc");
+		manifest.close();
+		// a crash while writing the next line
+		Files.write(manifestFile.toPath(), (second.getPath() + "\t20").getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+
+		manifest = open();
+		assertTrue(manifest.isCommitted(first, 10, "abc"));
+		assertFalse(manifest.isCommitted(second, 20, "def"));
+		manifest.commit(third, 30, "123");
+		manifest.close();
+
+		manifest = open();
+		assertTrue(manifest.isCommitted(first, 10, "abc"));
+		assertTrue(manifest.isCommitted(third, 30, "123"));
+		manifest.close();
+	}
+
+	@Test
+	public void addedEntriesAreWrittenBySync() throws IOException {
+		File first = target("a.bin", 10);
+		File second = target("b.bin", 20);
+		BinaryWriteManifest manifest = open();
+		manifest.add(first, 10, "abc");
+		manifest.add(second, 20, "def");
+		assertTrue(manifest.isCommitted(second, 20, "def"));
+		manifest.sync();
+
+		// read by another instance while the first one is still open
+		BinaryWriteManifest other = open();
+		assertTrue(other.isCommitted(first, 10, "abc"));
+		assertTrue(other.isCommitted(second, 20, "def"));
+		other.close();
+		manifest.close();
+	}
+
+	@Test
+	public void closeIsIdempotent() throws IOException {
+		BinaryWriteManifest manifest = open();
+		manifest.close();
+		manifest.close();
+		assertTrue(manifestFile.isFile());
+	}
+}
@@ -0,0 +1,96 @@
+package com.eulogix.kettle.steps.binary_file_output;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class Crc32cDigestTest {
+
+	private static int crc(byte[] input) {
+		return value(new Crc32cDigest().digest(input));
+	}
+
+	/**
+	 * reads back the CRC from the big endian digest
+	 */
+	private static int value(byte[] digest) {
+		assertEquals(4, digest.length);
+		return (digest[0] & 0xff) << 24 | (digest[1] & 0xff) << 16 | (digest[2] & 0xff) << 8 | (digest[3] & 0xff);
+	}
+
+	/**
+	 * bit by bit reference implementation
+	 */
+	private static int reference(byte[] input, int offset, int length) {
+		int crc = 0xffffffff;
+		for (int i = offset; i < offset + length; i++) {
+			crc ^= input[i] & 0xff;
+			for (int k = 0; k < 8; k++)
+				crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0x82F63B78 : crc >>> 1;
+		}
+		return ~crc;
+	}
+
+	@Test
+	public void rfc3720Vectors() {
+		byte[] zeros = new byte[32];
+		byte[] ones = new byte[32];
+		byte[] ascending = new byte[32];
+		byte[] descending = new byte[32];
+		for (int i = 0; i < 32; i++) {
+			ones[i] = (byte) 0xff;
+			ascending[i] = (byte) i;
+			descending[i] = (byte) (31 - i);
+		}
+		assertEquals(0x8A9136AA, crc(zeros));
+		assertEquals(0x62A8AB43, crc(ones));
+		assertEquals(0x46DD794E, crc(ascending));
+		assertEquals(0x113FDB5C, crc(descending));
+	}
+
+	@Test
+	public void checkValue() {
+		assertEquals(0xE3069283, crc("123456789".getBytes(StandardCharsets.US_ASCII)));
+		assertEquals(0, crc(new byte[0]));
+	}
+
+	@Test
+	public void digestIsBigEndian() {
+		assertArrayEquals(new byte[] { (byte) 0xE3, 0x06, (byte) 0x92, (byte) 0x83 },
+				new Crc32cDigest().digest("123456789".getBytes(StandardCharsets.US_ASCII)));
+	}
+
+	@Test
+	public void slicesMatchTheReferenceAtAnyOffsetAndLength() {
+		byte[] input = new byte[1000];
+		new Random(1).nextBytes(input);
+		// digest() also resets, so the same instance is reused
+		Crc32cDigest digest = new Crc32cDigest();
+		for (int offset = 0; offset < 9; offset++) {
+			for (int length = 0; length < 40; length++) {
+				digest.update(input, offset, length);
+				assertEquals("offset " + offset + " length " + length, reference(input, offset, length), value(digest.digest()));
+			}
+		}
+		digest.update(input, 3, 990);
+		assertEquals(reference(input, 3, 990), value(digest.digest()));
+	}
+
+	@Test
+	public void updatesCanBeSplitAnywhere() {
+		byte[] input = new byte[300];
+		new Random(2).nextBytes(input);
+		int expected = reference(input, 0, input.length);
+		Crc32cDigest digest = new Crc32cDigest();
+		for (int split = 0; split < input.length; split += 7) {
+			digest.update(input, 0, split);
+			digest.update(input[split]);
+			digest.update(input, split + 1, input.length - split - 1);
+			assertEquals("split " + split, expected, value(digest.digest()));
+		}
+	}
+}
@@ -1,14 +1,48 @@
 package com.eulogix.kettle.lib;
 
 
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.pentaho.di.core.RowSet;
+import org.pentaho.di.core.exception.KettleException;
+import org.pentaho.di.core.exception.KettleStepException;
+import org.pentaho.di.core.row.RowMetaInterface;
 import org.pentaho.di.trans.Trans;
 import org.pentaho.di.trans.TransMeta;
 import org.pentaho.di.trans.step.BaseStep;
 import org.pentaho.di.trans.step.StepDataInterface;
 import org.pentaho.di.trans.step.StepMeta;
+import org.pentaho.di.trans.step.StepMetaInterface;
 
 public abstract class EasyStep extends BaseStep {
 	
+	private EasyStepMeta easyStepMeta;
+	
+	/**
+	 * input row indexes of the stream fields configured in the settings, valid for indexedRowMeta
+	 */
+	private Map<String, Integer> fieldIndexes = new HashMap<String, Integer>();
+	private RowMetaInterface indexedRowMeta;
+	
+	/**
+	 * memory governor: budget in bytes of the rows waiting in the output row sets, 0 for none
+	 */
+	private long memoryBudget;
+	
+	/**
+	 * estimated sizes of the last rows put, the most recent ones are still queued
+	 */
+	private ArrayDeque<Long> queuedRowBytes = new ArrayDeque<Long>();
+	private long queuedBytes;
+	private boolean throttling;
+	
+	private static final String MEMORY_BUDGET_SETTING = "memoryBudgetMb";
+	private static final long THROTTLE_MILLIS = 10;
+	private static final long MB = 1024L * 1024L;
+
 	/**
 	 * The constructor should simply pass on its arguments to the parent class.
 	 * 
@@ -22,5 +56,203 @@ public abstract class EasyStep extends BaseStep {
 		super(s, stepDataInterface, c, t, dis);
 	}
 	
+	/**
+	 * keeps a reference to the meta object so that settings can be read by key
+	 */
+	public boolean init(StepMetaInterface smi, StepDataInterface sdi) {
+		easyStepMeta = (EasyStepMeta) smi;
+		if (!super.init(smi, sdi))
+			return false;
+		
+		if (easyStepMeta.fields.containsKey(MEMORY_BUDGET_SETTING))
+			memoryBudget = getIntSetting(MEMORY_BUDGET_SETTING, 0) * MB;
+		return true;
+	}
+	
+	/**
+	 * Row sets are bounded in rows, not in bytes: with a memory budget, putRow() waits
+	 * while the rows queued for the next steps are estimated to take more than the budget.
+	 * A single row bigger than the budget still goes through when nothing else is queued.
+	 */
+	public void putRow(RowMetaInterface rowMeta, Object[] row) throws KettleStepException {
+		if (memoryBudget > 0) {
+			long rowBytes = estimateBytes(row);
+			trimConsumedRows();
+			
+			while (queuedBytes > 0 && queuedBytes + rowBytes > memoryBudget && !isStopped()) {
+				if (!throttling) {
+					throttling = true;
+					logDetailed("Memory budget reached, ~" + queuedBytes / MB + " MB queued in " + queuedRowBytes.size() + " rows: waiting for the next steps");
+				}
+				try {
+					Thread.sleep(THROTTLE_MILLIS);
+				} catch (InterruptedException e) {
+					throw new KettleStepException("Interrupted while waiting for memory", e);
+				}
+				trimConsumedRows();
+			}
+			throttling = false;
+			
+			queuedRowBytes.add(rowBytes);
+			queuedBytes += rowBytes;
+			
+			if (checkFeedback(getLinesWritten() + 1)) {
+				logBasic("Memory governor: ~" + queuedBytes / MB + " MB queued in " + queuedRowBytes.size() + " rows, budget " + memoryBudget / MB + " MB");
+			}
+		}
+		super.putRow(rowMeta, row);
+	}
+	
+	/**
+	 * row sets are consumed in order, so only the last rows put can still be queued:
+	 * forgets the older ones
+	 */
+	private void trimConsumedRows() {
+		long queuedRows = getQueuedRows();
+		while (queuedRowBytes.size() > queuedRows) {
+			queuedBytes -= queuedRowBytes.poll();
+		}
+	}
+	
+	/**
+	 * rows put that the next steps have not read yet: when rows are distributed each one
+	 * is in a single row set, when they are copied each one is in all of them, and the
+	 * fullest row set holds all those still queued
+	 * @return
+	 */
+	protected long getQueuedRows() {
+		boolean distributes = getStepMeta().isDistributes();
+		long queuedRows = 0;
+		List<RowSet> rowSets = getOutputRowSets();
+		for (int i = 0; i < rowSets.size(); i++) {
+			int size = rowSets.get(i).size();
+			queuedRows = distributes ? queuedRows + size : Math.max(queuedRows, size);
+		}
+		return queuedRows;
+	}
+	
+	/**
+	 * lets steps holding data of their own, such as writes in flight, count it in the memory budget
+	 * @param heldBytes	bytes held by the step besides the queued rows
+	 * @return true if a memory budget is set and the queued rows and heldBytes exceed it
+	 */
+	protected boolean isOverMemoryBudget(long heldBytes) {
+		if (memoryBudget <= 0)
+			return false;
+		trimConsumedRows();
+		return queuedBytes + heldBytes > memoryBudget;
+	}
 	
+	/**
+	 * approximate heap taken by a row: binaries and strings count for their content, other values for a reference
+	 * @param row
+	 * @return
+	 */
+	protected long estimateBytes(Object[] row) {
+		long bytes = 16 + 8L * row.length;
+		for (Object value : row) {
+			if (value instanceof byte[]) {
+				bytes += ((byte[]) value).length;
+			} else if (value instanceof String) {
+				bytes += 2L * ((String) value).length();
+			} else if (value != null) {
+				bytes += 16;
+			}
+		}
+		return bytes;
+	}
+
+	/**
+	 * returns the value of a step setting with variables resolved, or an empty string if not set
+	 * @param key
+	 * @return
+	 */
+	protected String getSetting(String key) {
+		Object value = easyStepMeta.fields.get(key);
+		return value == null ? "" : environmentSubstitute(value.toString()).trim();
+	}
+
+	/**
+	 * returns a numeric setting, falling back to the default when empty or not a number
+	 * @param key
+	 * @param defaultValue
+	 * @return
+	 */
+	protected int getIntSetting(String key, int defaultValue) {
+		String value = getSetting(key);
+		if(value.isEmpty())
+			return defaultValue;
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			logError("Invalid numeric value '" + value + "' for setting " + key + ", using " + defaultValue);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * returns true if a checkbox setting is ticked
+	 * @param key
+	 * @return
+	 */
+	protected boolean getBooleanSetting(String key) {
+		return "Y".equals(getSetting(key));
+	}
+
+	/**
+	 * returns the input row index of the stream field selected in a setting.
+	 * Names are resolved once and cached until the input row structure changes.
+	 * @param key the setting holding the stream field name
+	 * @return
+	 * @throws KettleStepException if the field is not in the input stream
+	 */
+	protected int getFieldIndex(String key) throws KettleStepException {
+		RowMetaInterface rowMeta = getInputRowMeta();
+		if (rowMeta != indexedRowMeta) {
+			fieldIndexes.clear();
+			indexedRowMeta = rowMeta;
+		}
+		
+		Integer index = fieldIndexes.get(key);
+		if (index == null) {
+			Object fieldName = easyStepMeta.fields.get(key);
+			index = fieldName == null ? -1 : rowMeta.indexOfValue(fieldName.toString());
+			if (index < 0)
+				throw new KettleStepException("Field '" + fieldName + "' selected for " + key + " not found in the input stream");
+			fieldIndexes.put(key, index);
+		}
+		return index;
+	}
+	
+	/**
+	 * returns the raw value of the stream field selected in a setting
+	 * @param row
+	 * @param key
+	 * @return
+	 * @throws KettleException
+	 */
+	protected Object getValue(Object[] row, String key) throws KettleException {
+		return row[getFieldIndex(key)];
+	}
+	
+	protected String getString(Object[] row, String key) throws KettleException {
+		int index = getFieldIndex(key);
+		return getInputRowMeta().getValueMeta(index).getString(row[index]);
+	}
+	
+	protected byte[] getBytes(Object[] row, String key) throws KettleException {
+		int index = getFieldIndex(key);
+		return getInputRowMeta().getValueMeta(index).getBinary(row[index]);
+	}
+	
+	protected Long getInteger(Object[] row, String key) throws KettleException {
+		int index = getFieldIndex(key);
+		return getInputRowMeta().getValueMeta(index).getInteger(row[index]);
+	}
+	
+	protected Boolean getBoolean(Object[] row, String key) throws KettleException {
+		int index = getFieldIndex(key);
+		return getInputRowMeta().getValueMeta(index).getBoolean(row[index]);
+	}
+
 }
@@ -0,0 +1,96 @@
+package com.eulogix.kettle.steps.pst_input;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import com.pff.PSTFileContent;
+
+/**
+ * PST file content read a page at a time through the shared page cache.
+ * libpst reads the file with small seeks and single byte reads: these are served
+ * from the current page, the file is only read when a page is not cached yet.
+ * Like PSTFile itself, an instance must be used by a single thread.
+ */
+public class CachedPstFileContent extends PSTFileContent {
+
+	private RandomAccessFile file;
+	private String fileKey;
+	private long length;
+	private PstPageCache cache;
+
+	private long position;
+	private long pageIndex = -1;
+	private byte[] page;
+
+	public CachedPstFileContent(File pstFile, PstPageCache cache) throws IOException {
+		this.fileKey = PstPageCache.fileKey(pstFile);
+		this.file = new RandomAccessFile(pstFile, "r");
+		this.length = file.length();
+		this.cache = cache;
+	}
+
+	public void seek(long index) throws IOException {
+		position = index;
+	}
+
+	public long getFilePointer() throws IOException {
+		return position;
+	}
+
+	public int read() throws IOException {
+		if (position >= length)
+			return -1;
+		return readByte() & 0xff;
+	}
+
+	public int read(byte[] target) throws IOException {
+		if (target.length == 0)
+			return 0;
+		if (position >= length)
+			return -1;
+
+		int count = (int) Math.min(target.length, length - position);
+		int done = 0;
+		while (done < count) {
+			byte[] current = pageAt(position);
+			int offset = (int) (position % PstPageCache.PAGE_SIZE);
+			int chunk = Math.min(count - done, current.length - offset);
+			System.arraycopy(current, offset, target, done, chunk);
+			done += chunk;
+			position += chunk;
+		}
+		return count;
+	}
+
+	public byte readByte() throws IOException {
+		if (position >= length)
+			throw new EOFException();
+		byte[] current = pageAt(position);
+		return current[(int) (position++ % PstPageCache.PAGE_SIZE)];
+	}
+
+	public void close() throws IOException {
+		page = null;
+		file.close();
+	}
+
+	private byte[] pageAt(long offset) throws IOException {
+		long index = offset / PstPageCache.PAGE_SIZE;
+		if (index == pageIndex)
+			return page;
+
+		byte[] cached = cache.getPage(fileKey, index);
+		if (cached == null) {
+			long start = index * PstPageCache.PAGE_SIZE;
+			cached = new byte[(int) Math.min(PstPageCache.PAGE_SIZE, length - start)];
+			file.seek(start);
+			file.readFully(cached);
+			cache.putPage(fileKey, index, cached);
+		}
+		page = cached;
+		pageIndex = index;
+		return page;
+	}
+}
@@ -0,0 +1,205 @@
+package com.eulogix.kettle.steps.pst_input;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+import com.pff.PSTFileContent;
+
+/**
+ * PST file content serving the pages of a sidecar index from memory and everything else
+ * from the underlying content (plain, cached or memory mapped).
+ *
+ * While recording, the pages touched by the reads are noted, so that the ones read while
+ * opening the file and walking its folder tree can be saved as its index.
+ * Like PSTFile itself, an instance must be used by a single thread.
+ */
+public class IndexedPstFileContent extends PSTFileContent {
+
+	private static final int PAGE_SIZE = PstPageCache.PAGE_SIZE;
+
+	private PSTFileContent content;
+	private Map<Long, byte[]> pages;
+	private PstIndexStore store;
+	private TreeSet<Long> recorded;
+
+	private long position;
+
+	/**
+	 * @param content	the underlying content, closed along with this one
+	 * @param pages		pages loaded from the index, null when there is none yet
+	 * @param store		the store the pages are released to when closed
+	 */
+	public IndexedPstFileContent(PSTFileContent content, Map<Long, byte[]> pages, PstIndexStore store) {
+		this.content = content;
+		this.pages = pages;
+		this.store = store;
+	}
+
+	/**
+	 * serves the pages of an index just built, from now on
+	 * @param pages	as returned by the store
+	 */
+	public void useIndex(Map<Long, byte[]> pages) {
+		releaseIndex();
+		this.pages = pages;
+	}
+
+	/**
+	 * gives the pages back to the store, reads then all go to the underlying content
+	 */
+	public void releaseIndex() {
+		if (pages != null)
+			store.release(pages);
+		pages = null;
+	}
+
+	public void startRecording() {
+		recorded = new TreeSet<Long>();
+	}
+
+	/**
+	 * stops noting the pages read and returns their content
+	 * @return
+	 * @throws IOException
+	 */
+	public Map<Long, byte[]> stopRecording() throws IOException {
+		Map<Long, byte[]> recordedPages = new HashMap<Long, byte[]>(recorded.size() * 2);
+		for (Long pageIndex : recorded) {
+			content.seek(pageIndex * PAGE_SIZE);
+			byte[] page = new byte[PAGE_SIZE];
+			int length = readFully(page);
+			if (length < PAGE_SIZE) {
+				byte[] lastPage = new byte[length];
+				System.arraycopy(page, 0, lastPage, 0, length);
+				page = lastPage;
+			}
+			recordedPages.put(pageIndex, page);
+		}
+		recorded = null;
+		return recordedPages;
+	}
+
+	public void seek(long index) throws IOException {
+		position = index;
+	}
+
+	public long getFilePointer() throws IOException {
+		return position;
+	}
+
+	public int read() throws IOException {
+		byte[] page = pageAt(position);
+		if (page != null) {
+			int offset = (int) (position % PAGE_SIZE);
+			if (offset < page.length) {
+				position++;
+				return page[offset] & 0xff;
+			}
+			return -1;
+		}
+		content.seek(position);
+		int value = content.read();
+		if (value >= 0)
+			position++;
+		return value;
+	}
+
+	public int read(byte[] target) throws IOException {
+		if (target.length == 0)
+			return 0;
+		if (recorded != null) {
+			long last = (position + Math.max(0, target.length - 1)) / PAGE_SIZE;
+			for (long pageIndex = position / PAGE_SIZE; pageIndex <= last; pageIndex++)
+				recorded.add(pageIndex);
+		}
+
+		if (pages == null || !overlapsIndex(position, target.length)) {
+			content.seek(position);
+			int count = content.read(target);
+			if (count > 0)
+				position += count;
+			return count;
+		}
+
+		// the range is partly indexed: copied page by page
+		int done = 0;
+		while (done < target.length) {
+			int offset = (int) (position % PAGE_SIZE);
+			int chunk = Math.min(target.length - done, PAGE_SIZE - offset);
+			byte[] page = pages.get(position / PAGE_SIZE);
+			if (page == null) {
+				page = new byte[chunk];
+				content.seek(position);
+				int count = content.read(page);
+				if (count <= 0)
+					break;
+				System.arraycopy(page, 0, target, done, count);
+				done += count;
+				position += count;
+				if (count < chunk)
+					break;
+			} else {
+				chunk = Math.min(chunk, page.length - offset);
+				if (chunk <= 0)
+					break;
+				System.arraycopy(page, offset, target, done, chunk);
+				done += chunk;
+				position += chunk;
+			}
+		}
+		return done == 0 ? -1 : done;
+	}
+
+	public byte readByte() throws IOException {
+		int value = read();
+		if (value < 0)
+			throw new EOFException();
+		return (byte) value;
+	}
+
+	public void close() throws IOException {
+		try {
+			content.close();
+		} finally {
+			releaseIndex();
+		}
+	}
+
+	private byte[] pageAt(long offset) {
+		long pageIndex = offset / PAGE_SIZE;
+		if (recorded != null)
+			recorded.add(pageIndex);
+		return pages == null ? null : pages.get(pageIndex);
+	}
+
+	private boolean overlapsIndex(long offset, int length) {
+		long last = (offset + Math.max(0, length - 1)) / PAGE_SIZE;
+		for (long pageIndex = offset / PAGE_SIZE; pageIndex <= last; pageIndex++) {
+			if (pages.containsKey(pageIndex))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * reads from the underlying content until the buffer is full or the file is over
+	 */
+	private int readFully(byte[] buffer) throws IOException {
+		int done = 0;
+		long start = content.getFilePointer();
+		while (done < buffer.length) {
+			byte[] rest = done == 0 ? buffer : new byte[buffer.length - done];
+			int count = content.read(rest);
+			if (count <= 0)
+				break;
+			if (rest != buffer)
+				System.arraycopy(rest, 0, buffer, done, count);
+			done += count;
+			content.seek(start + done);
+		}
+		return done;
+	}
+}
@@ -0,0 +1,95 @@
+package com.eulogix.kettle.steps.pst_input;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import com.pff.PSTFileContent;
+
+/**
+ * PST file content served from memory mappings of the file instead of seek/read calls,
+ * leaving the caching to the OS page cache, which is shared by all the handles on the file.
+ *
+ * A single MappedByteBuffer cannot exceed 2 GB, so the file is mapped in segments, each
+ * one when it is first read. Mappings are released by the garbage collector once the
+ * content is closed, so this is meant for local files rather than network shares.
+ * Like PSTFile itself, an instance must be used by a single thread.
+ */
+public class MappedPstFileContent extends PSTFileContent {
+
+	public static final int SEGMENT_SIZE = 1 << 30;
+
+	private FileChannel channel;
+	private long length;
+	private MappedByteBuffer[] segments;
+
+	private long position;
+
+	public MappedPstFileContent(File pstFile) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(pstFile, "r");
+		channel = file.getChannel();
+		length = channel.size();
+		segments = new MappedByteBuffer[(int) ((length + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+	}
+
+	public void seek(long index) throws IOException {
+		position = index;
+	}
+
+	public long getFilePointer() throws IOException {
+		return position;
+	}
+
+	public int read() throws IOException {
+		if (position >= length)
+			return -1;
+		return readByte() & 0xff;
+	}
+
+	public int read(byte[] target) throws IOException {
+		if (target.length == 0)
+			return 0;
+		if (position >= length)
+			return -1;
+
+		int count = (int) Math.min(target.length, length - position);
+		int done = 0;
+		while (done < count) {
+			MappedByteBuffer segment = segmentAt(position);
+			int offset = (int) (position % SEGMENT_SIZE);
+			int chunk = Math.min(count - done, segment.capacity() - offset);
+			// absolute positioning on the buffer, which is private to this content
+			segment.position(offset);
+			segment.get(target, done, chunk);
+			done += chunk;
+			position += chunk;
+		}
+		return count;
+	}
+
+	public byte readByte() throws IOException {
+		if (position >= length)
+			throw new EOFException();
+		MappedByteBuffer segment = segmentAt(position);
+		return segment.get((int) (position++ % SEGMENT_SIZE));
+	}
+
+	public void close() throws IOException {
+		segments = null;
+		channel.close();
+	}
+
+	private MappedByteBuffer segmentAt(long offset) throws IOException {
+		int index = (int) (offset / SEGMENT_SIZE);
+		MappedByteBuffer segment = segments[index];
+		if (segment == null) {
+			long start = (long) index * SEGMENT_SIZE;
+			segment = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, length - start));
+			segments[index] = segment;
+		}
+		return segment;
+	}
+}
@@ -0,0 +1,211 @@
+package com.eulogix.kettle.steps.pst_input;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.pentaho.di.core.row.ValueMeta;
+
+import com.pff.PSTAttachment;
+import com.pff.PSTException;
+import com.pff.PSTMessage;
+
+/**
+ * Writes the attachments of a message to <folder>/<PST path hash>/<message descriptor id>/<file name>,
+ * the hash being the one naming the checkpoint and index of the PST file, so that messages
+ * of different files with the same descriptor id do not share a folder.
+ * Attachment bytes are streamed from the PST through a fixed size buffer per thread,
+ * so they are never held in memory nor in the output rows, whatever their size.
+ * Each file is written under a temporary name and renamed once complete. Existing files
+ * are never replaced: reading the same message again finds its files already there, and
+ * an attachment whose name is taken by a different content gets a numbered name.
+ */
+public class PstAttachmentWriter {
+
+	public static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * fields added to the message fields, one output row per attachment
+	 */
+	public static final String[] FIELD_NAMES = { "attachment_parent_id", "attachment_filename", "attachment_mime_type", "attachment_size", "attachment_path" };
+	public static final int[] FIELD_TYPES = { ValueMeta.TYPE_INTEGER, ValueMeta.TYPE_STRING, ValueMeta.TYPE_STRING, ValueMeta.TYPE_INTEGER, ValueMeta.TYPE_STRING };
+
+	private File folder;
+
+	private ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+		protected byte[] initialValue() {
+			return new byte[BUFFER_SIZE];
+		}
+	};
+
+	public PstAttachmentWriter(File folder) throws IOException {
+		this.folder = folder;
+		if (!folder.isDirectory() && !folder.mkdirs())
+			throw new IOException("Unable to create attachment folder " + folder);
+	}
+
+	/**
+	 * writes all the attachments of a message
+	 * @param pstFile	the file the message comes from
+	 * @param email
+	 * @return the values of the attachment fields, one array per attachment
+	 * @throws PSTException
+	 * @throws IOException
+	 */
+	public Object[][] write(File pstFile, PSTMessage email) throws PSTException, IOException {
+		int count = email.getNumberOfAttachments();
+		Object[][] values = new Object[count][];
+		if (count == 0)
+			return values;
+
+		long parentId = email.getDescriptorNodeId();
+		File messageFolder = new File(new File(folder, PstCheckpointStore.hash(pstFile.getAbsolutePath())), String.valueOf(parentId));
+		Set<String> names = new HashSet<String>();
+
+		for (int i = 0; i < count; i++) {
+			PSTAttachment attachment = email.getAttachment(i);
+			String fileName = attachment.getLongFilename();
+			if (fileName == null || fileName.isEmpty())
+				fileName = attachment.getFilename();
+
+			Object[] attachmentValues = new Object[FIELD_NAMES.length];
+			attachmentValues[0] = Long.valueOf(parentId);
+			attachmentValues[1] = fileName;
+			attachmentValues[2] = attachment.getMimeTag();
+
+			// embedded messages have no file content, their row has no path
+			if (attachment.getAttachMethod() != PSTAttachment.ATTACHMENT_METHOD_EMBEDDED) {
+				String name = safeName(fileName, i);
+				File tempFile = new File(messageFolder, "." + name + "." + Thread.currentThread().getId() + ".part");
+				try {
+					attachmentValues[3] = Long.valueOf(writeFile(attachment, messageFolder, tempFile));
+					attachmentValues[4] = moveToTarget(tempFile, messageFolder, name, names).getAbsolutePath();
+				} finally {
+					// only left there by a failure
+					tempFile.delete();
+				}
+			} else {
+				attachmentValues[3] = Long.valueOf(attachment.getAttachSize());
+			}
+			values[i] = attachmentValues;
+		}
+		return values;
+	}
+
+	private long writeFile(PSTAttachment attachment, File messageFolder, File tempFile) throws PSTException, IOException {
+		if (!messageFolder.isDirectory() && !messageFolder.mkdirs())
+			throw new IOException("Unable to create attachment folder " + messageFolder);
+
+		byte[] buffer = buffers.get();
+		long size = 0;
+
+		InputStream in = attachment.getFileInputStream();
+		try {
+			OutputStream out = new FileOutputStream(tempFile);
+			try {
+				if (in != null) {
+					int read;
+					while ((read = in.read(buffer)) > 0) {
+						out.write(buffer, 0, read);
+						size += read;
+					}
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			if (in != null)
+				in.close();
+		}
+		return size;
+	}
+
+	/**
+	 * renames the complete file to the first free name among name, name_1, name_2...
+	 * A file already holding the same content is taken as written by an earlier read of the message.
+	 * @param names	lower case names already used by the message, two attachments never share a file
+	 * @return the attachment file
+	 */
+	File moveToTarget(File tempFile, File messageFolder, String name, Set<String> names) throws IOException {
+		for (int n = 0; ; n++) {
+			String candidate = n == 0 ? name : numberedName(name, n);
+			if (names.contains(candidate.toLowerCase()))
+				continue;
+			File target = new File(messageFolder, candidate);
+			try {
+				// fails rather than replacing an existing file
+				Files.move(tempFile.toPath(), target.toPath());
+			} catch (FileAlreadyExistsException e) {
+				if (!sameContent(tempFile, target))
+					continue;
+				Files.delete(tempFile.toPath());
+			}
+			names.add(candidate.toLowerCase());
+			return target;
+		}
+	}
+
+	/**
+	 * report.pdf becomes report_1.pdf, names without extension just get the suffix
+	 */
+	static String numberedName(String name, int n) {
+		int dot = name.lastIndexOf('.');
+		if (dot <= 0)
+			return name + "_" + n;
+		return name.substring(0, dot) + "_" + n + name.substring(dot);
+	}
+
+	private boolean sameContent(File file, File other) throws IOException {
+		if (!other.isFile() || file.length() != other.length())
+			return false;
+		byte[] buffer = buffers.get();
+		byte[] otherBuffer = new byte[buffer.length];
+		InputStream in = new FileInputStream(file);
+		try {
+			InputStream otherIn = new FileInputStream(other);
+			try {
+				int read;
+				while ((read = readFully(in, buffer)) > 0) {
+					if (readFully(otherIn, otherBuffer) != read)
+						return false;
+					for (int i = 0; i < read; i++) {
+						if (buffer[i] != otherBuffer[i])
+							return false;
+					}
+				}
+				return true;
+			} finally {
+				otherIn.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private static int readFully(InputStream in, byte[] buffer) throws IOException {
+		int done = 0;
+		int read;
+		while (done < buffer.length && (read = in.read(buffer, done, buffer.length - done)) > 0)
+			done += read;
+		return done;
+	}
+
+	/**
+	 * attachment names come from the PST: anything that could escape the message folder is replaced
+	 */
+	private static String safeName(String fileName, int index) {
+		if (fileName == null || fileName.trim().isEmpty())
+			return "attachment_" + index;
+		String name = fileName.trim().replaceAll("[\\\\/:*?\"<>|\\x00-\\x1f]", "_");
+		if (name.equals(".") || name.equals(".."))
+			return "attachment_" + index;
+		return name;
+	}
+}
@@ -0,0 +1,124 @@
+package com.eulogix.kettle.steps.pst_input;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Progress of the step on a single PST file, persisted by PstCheckpointStore.
+ * A file is identified by its path, size and last modification time: if any of
+ * them changes the checkpoint no longer applies and the file is read from scratch.
+ * The same happens when the settings that decide which rows a file produces change.
+ */
+public class PstCheckpoint {
+
+	public String path;
+	public long size;
+	public long lastModified;
+
+	/**
+	 * fingerprint of the filters and output fields the file was read with
+	 */
+	public String settings;
+
+	/**
+	 * true once the whole file has been read, the file is then skipped until it changes
+	 */
+	public boolean complete;
+
+	/**
+	 * descriptor ids of the folders whose messages have all been emitted
+	 */
+	public Set<Long> completedFolders = new HashSet<Long>();
+
+	/**
+	 * folder being read when the checkpoint was saved, with the position of the
+	 * next child to read and the descriptor id of the last child read before it
+	 */
+	public long currentFolder;
+	public int currentPosition;
+	public long lastDescriptorId;
+
+	/**
+	 * work units still to be read per folder when reading with folder workers, not persisted
+	 */
+	private transient Map<Long, Integer> pendingUnits;
+
+	public PstCheckpoint() {
+	}
+
+	public PstCheckpoint(File file, String settings) {
+		this.path = file.getAbsolutePath();
+		this.size = file.length();
+		this.lastModified = file.lastModified();
+		this.settings = settings;
+	}
+
+	public boolean matches(File file, String settings) {
+		return size == file.length() && lastModified == file.lastModified() && settings.equals(this.settings);
+	}
+
+	/**
+	 * copy of the current state, saved once the rows emitted before it have been consumed
+	 * @return
+	 */
+	public synchronized PstCheckpoint snapshot() {
+		PstCheckpoint snapshot = new PstCheckpoint();
+		snapshot.path = path;
+		snapshot.size = size;
+		snapshot.lastModified = lastModified;
+		snapshot.settings = settings;
+		snapshot.complete = complete;
+		snapshot.completedFolders = new HashSet<Long>(completedFolders);
+		snapshot.currentFolder = currentFolder;
+		snapshot.currentPosition = currentPosition;
+		snapshot.lastDescriptorId = lastDescriptorId;
+		return snapshot;
+	}
+
+	public synchronized boolean isFolderCompleted(long folderId) {
+		return completedFolders.contains(folderId);
+	}
+
+	public synchronized void folderCompleted(long folderId) {
+		completedFolders.add(folderId);
+		if (currentFolder == folderId) {
+			currentFolder = 0;
+			currentPosition = 0;
+			lastDescriptorId = 0;
+		}
+	}
+
+	public synchronized void childRead(long folderId, int nextPosition, long descriptorId) {
+		currentFolder = folderId;
+		currentPosition = nextPosition;
+		lastDescriptorId = descriptorId;
+	}
+
+	public synchronized int getResumePosition(long folderId) {
+		return currentFolder == folderId ? currentPosition : 0;
+	}
+
+	public synchronized void unitPlanned(long folderId) {
+		if (pendingUnits == null)
+			pendingUnits = new HashMap<Long, Integer>();
+		Integer pending = pendingUnits.get(folderId);
+		pendingUnits.put(folderId, pending == null ? 1 : pending + 1);
+	}
+
+	/**
+	 * marks a work unit as read, and the folder as completed once all its units are
+	 * @param folderId
+	 * @return true if the folder has been completed
+	 */
+	public synchronized boolean unitCompleted(long folderId) {
+		int pending = pendingUnits.get(folderId) - 1;
+		pendingUnits.put(folderId, pending);
+		if (pending > 0)
+			return false;
+		folderCompleted(folderId);
+		return true;
+	}
+}
@@ -0,0 +1,57 @@
+package com.eulogix.kettle.steps.pst_input;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/**
+ * Checkpoints waiting for the rows put before them to be read by the next steps.
+ * A row handed to putRow() may still sit in an output row set when the transformation
+ * dies, so a checkpoint is only saved once every row put before it has been consumed:
+ * a resumed file then starts at worst a little before where it stopped, and the rows
+ * in between are emitted again rather than lost. Used by the step thread only.
+ */
+public class PstCheckpointQueue {
+
+	private PstCheckpointStore store;
+	private ArrayDeque<PstCheckpoint> snapshots = new ArrayDeque<PstCheckpoint>();
+
+	/**
+	 * number of rows put when each snapshot was queued
+	 */
+	private ArrayDeque<Long> rowCounts = new ArrayDeque<Long>();
+	private long rowsPut;
+
+	public PstCheckpointQueue(PstCheckpointStore store) {
+		this.store = store;
+	}
+
+	public void rowPut() {
+		rowsPut++;
+	}
+
+	/**
+	 * queues a snapshot taken after all the rows put so far
+	 * @param snapshot
+	 */
+	public void add(PstCheckpoint snapshot) {
+		snapshots.add(snapshot);
+		rowCounts.add(rowsPut);
+	}
+
+	/**
+	 * saves, in order, the snapshots whose rows have all been consumed
+	 * @param queuedRows	rows put but not yet read by the next steps
+	 * @throws IOException
+	 */
+	public void saveConsumed(long queuedRows) throws IOException {
+		long consumed = rowsPut - queuedRows;
+		while (!snapshots.isEmpty() && rowCounts.peek() <= consumed) {
+			rowCounts.poll();
+			store.save(snapshots.poll());
+		}
+	}
+
+	public boolean isEmpty() {
+		return snapshots.isEmpty();
+	}
+}
@@ -0,0 +1,102 @@
+package com.eulogix.kettle.steps.pst_input;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+/**
+ * Keeps one JSON checkpoint per PST file in a local folder, named after a hash of the file path.
+ * Checkpoints are written to a temporary file and renamed, so a crash while saving
+ * leaves the previous checkpoint in place.
+ */
+public class PstCheckpointStore {
+
+	private File folder;
+	private String settings;
+	private Gson gson = new Gson();
+
+	/**
+	 * @param folder		folder of the checkpoint files
+	 * @param settings		fingerprint of the settings the files are read with, see fingerprint()
+	 * @throws IOException
+	 */
+	public PstCheckpointStore(File folder, String settings) throws IOException {
+		this.folder = folder;
+		this.settings = settings;
+		if (!folder.isDirectory() && !folder.mkdirs())
+			throw new IOException("Unable to create checkpoint folder " + folder);
+	}
+
+	/**
+	 * returns the checkpoint of the file, a fresh one if there is none or if the file or the settings have changed since
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public PstCheckpoint load(File file) throws IOException {
+		File checkpointFile = getCheckpointFile(file);
+		if (checkpointFile.isFile()) {
+			try {
+				PstCheckpoint checkpoint = gson.fromJson(new String(Files.readAllBytes(checkpointFile.toPath()), StandardCharsets.UTF_8), PstCheckpoint.class);
+				if (checkpoint != null && checkpoint.matches(file, settings))
+					return checkpoint;
+			} catch (JsonParseException e) {
+				// unreadable checkpoints are simply discarded
+			}
+		}
+		return new PstCheckpoint(file, settings);
+	}
+
+	/**
+	 * saves are serialized on the checkpoint, so that an older snapshot can never replace a newer one
+	 * @param checkpoint
+	 * @throws IOException
+	 */
+	public void save(PstCheckpoint checkpoint) throws IOException {
+		synchronized (checkpoint) {
+			File checkpointFile = getCheckpointFile(new File(checkpoint.path));
+			File tempFile = new File(folder, checkpointFile.getName() + ".tmp");
+			Files.write(tempFile.toPath(), gson.toJson(checkpoint).getBytes(StandardCharsets.UTF_8));
+			Files.move(tempFile.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+	}
+
+	/**
+	 * hash of the settings values, in order
+	 * @param values
+	 * @return
+	 */
+	public static String fingerprint(String... values) {
+		StringBuilder joined = new StringBuilder();
+		for (String value : values)
+			joined.append(value).append('\n');
+		return hash(joined.toString());
+	}
+
+	private File getCheckpointFile(File file) {
+		return new File(folder, hash(file.getAbsolutePath()) + ".json");
+	}
+
+	/**
+	 * SHA-1 of a value in hex, used to name the files and folders kept for each PST file
+	 */
+	static String hash(String value) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			byte[] hash = digest.digest(value.getBytes(StandardCharsets.UTF_8));
+			StringBuilder hex = new StringBuilder();
+			for (byte b : hash)
+				hex.append(String.format("%02x", b));
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
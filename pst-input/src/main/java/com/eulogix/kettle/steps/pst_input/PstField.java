@@ -0,0 +1,99 @@
+package com.eulogix.kettle.steps.pst_input;
+
+import java.io.IOException;
+
+import org.pentaho.di.core.row.ValueMeta;
+
+import com.pff.PSTException;
+import com.pff.PSTFolder;
+import com.pff.PSTMessage;
+
+/**
+ * The fields the step can read from each message, in output order.
+ * Only the selected properties are ever read from the PST.
+ */
+public enum PstField {
+
+	DESCRIPTOR_NODE_ID("descriptor_node_id", ValueMeta.TYPE_INTEGER),
+	FOLDER("folder", ValueMeta.TYPE_STRING),
+	DATE("date", ValueMeta.TYPE_DATE),
+	SUBJECT("subject", ValueMeta.TYPE_STRING),
+	BODY("body", ValueMeta.TYPE_STRING),
+	BODY_HTML("body_html", ValueMeta.TYPE_STRING),
+	BODY_PREFIX("body_prefix", ValueMeta.TYPE_STRING),
+	SENDER_NAME("sender_name", ValueMeta.TYPE_STRING),
+	SENDER_EMAIL_ADDRESS("sender_email_address", ValueMeta.TYPE_STRING),
+	TO("to", ValueMeta.TYPE_STRING),
+	CC("cc", ValueMeta.TYPE_STRING),
+	BCC("bcc", ValueMeta.TYPE_STRING),
+	SIZE("size", ValueMeta.TYPE_INTEGER),
+	NUMBER_OF_ATTACHMENTS("number_of_attachments", ValueMeta.TYPE_INTEGER),
+	NUMBER_OF_RECIPIENTS("number_of_recipients", ValueMeta.TYPE_INTEGER),
+	IMPORTANCE("importance", ValueMeta.TYPE_INTEGER),
+	IN_REPLY_TO_ID("in_reply_to_id", ValueMeta.TYPE_STRING),
+	MESSAGE_CLASS("message_class", ValueMeta.TYPE_STRING),
+	MESSAGE_CC_ME("message_cc_me", ValueMeta.TYPE_BOOLEAN),
+	MESSAGE_TO_ME("message_to_me", ValueMeta.TYPE_BOOLEAN),
+	REPLY_REQUESTED("reply_requested", ValueMeta.TYPE_BOOLEAN),
+	FORWARDED("forwarded", ValueMeta.TYPE_BOOLEAN),
+	READ("read", ValueMeta.TYPE_BOOLEAN),
+	REPLIED("replied", ValueMeta.TYPE_BOOLEAN),
+	FROM_ME("from_me", ValueMeta.TYPE_BOOLEAN);
+
+	private final String fieldName;
+	private final int type;
+
+	private PstField(String fieldName, int type) {
+		this.fieldName = fieldName;
+		this.type = type;
+	}
+
+	public String getFieldName() {
+		return fieldName;
+	}
+
+	public int getType() {
+		return type;
+	}
+
+	/**
+	 * reads the selected fields of a message into the row. Straight line code rather than a
+	 * call per field, which does not inline once more than two fields are selected: see
+	 * PstRowBuildingBenchmark
+	 * @param folder
+	 * @param email
+	 * @param positions		output position of each field by ordinal, -1 for the fields not selected
+	 * @param row
+	 * @throws PSTException
+	 * @throws IOException
+	 */
+	public static void read(PSTFolder folder, PSTMessage email, int[] positions, Object[] row) throws PSTException, IOException {
+		int position;
+		if ((position = positions[DESCRIPTOR_NODE_ID.ordinal()]) >= 0) row[position] = Long.valueOf( email.getDescriptorNodeId() );
+		if ((position = positions[FOLDER.ordinal()]) >= 0) row[position] = folder.getDisplayName();
+		if ((position = positions[DATE.ordinal()]) >= 0) row[position] = email.getClientSubmitTime();
+		if ((position = positions[SUBJECT.ordinal()]) >= 0) row[position] = email.getSubject();
+		if ((position = positions[BODY.ordinal()]) >= 0) row[position] = email.getBody();
+		if ((position = positions[BODY_HTML.ordinal()]) >= 0) row[position] = email.getBodyHTML();
+		if ((position = positions[BODY_PREFIX.ordinal()]) >= 0) row[position] = email.getBodyPrefix();
+		if ((position = positions[SENDER_NAME.ordinal()]) >= 0) row[position] = email.getSenderName();
+		if ((position = positions[SENDER_EMAIL_ADDRESS.ordinal()]) >= 0) row[position] = email.getSenderEmailAddress();
+		if ((position = positions[TO.ordinal()]) >= 0) row[position] = email.getDisplayTo();
+		if ((position = positions[CC.ordinal()]) >= 0) row[position] = email.getDisplayCC();
+		if ((position = positions[BCC.ordinal()]) >= 0) row[position] = email.getDisplayBCC();
+		if ((position = positions[SIZE.ordinal()]) >= 0) row[position] = Long.valueOf( email.getMessageSize() );
+		if ((position = positions[NUMBER_OF_ATTACHMENTS.ordinal()]) >= 0) row[position] = Long.valueOf( email.getNumberOfAttachments() );
+		if ((position = positions[NUMBER_OF_RECIPIENTS.ordinal()]) >= 0) row[position] = Long.valueOf( email.getNumberOfRecipients() );
+		if ((position = positions[IMPORTANCE.ordinal()]) >= 0) row[position] = Long.valueOf( email.getImportance() );
+		if ((position = positions[IN_REPLY_TO_ID.ordinal()]) >= 0) row[position] = email.getInReplyToId();
+		if ((position = positions[MESSAGE_CLASS.ordinal()]) >= 0) row[position] = email.getMessageClass();
+		if ((position = positions[MESSAGE_CC_ME.ordinal()]) >= 0) row[position] = email.getMessageCcMe();
+		if ((position = positions[MESSAGE_TO_ME.ordinal()]) >= 0) row[position] = email.getMessageToMe();
+		if ((position = positions[REPLY_REQUESTED.ordinal()]) >= 0) row[position] = email.isReplyRequested();
+		if ((position = positions[FORWARDED.ordinal()]) >= 0) row[position] = email.hasForwarded();
+		if ((position = positions[READ.ordinal()]) >= 0) row[position] = email.isRead();
+		if ((position = positions[REPLIED.ordinal()]) >= 0) row[position] = email.hasReplied();
+		if ((position = positions[FROM_ME.ordinal()]) >= 0) row[position] = email.isFromMe();
+	}
+
+}
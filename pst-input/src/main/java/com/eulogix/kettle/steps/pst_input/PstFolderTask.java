@@ -0,0 +1,84 @@
+package com.eulogix.kettle.steps.pst_input;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RecursiveAction;
+
+import com.pff.PSTFile;
+
+/**
+ * Fork/join task reading a slice of the work units planned for a single PST file.
+ * The slice is split in two halves of roughly the same number of messages until a
+ * single unit is left, idle workers then steal the pending halves.
+ * Every worker thread reads through its own PSTFile handle, as PSTFile is not thread safe.
+ */
+public class PstFolderTask extends RecursiveAction {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * folders holding more messages than this are split into several units
+	 */
+	public static final int MESSAGES_PER_UNIT = 2000;
+
+	private PstInputStep step;
+	private String pstFileName;
+	private Object[] row;
+	private PstInputStepData data;
+	private PstRowSink sink;
+	private PstCheckpoint checkpoint;
+	private Map<Thread, PSTFile> handles;
+	private List<PstWorkUnit> units;
+	private int from;
+	private int to;
+
+	public PstFolderTask(PstInputStep step, String pstFileName, Object[] row, PstInputStepData data, PstRowSink sink,
+			PstCheckpoint checkpoint, Map<Thread, PSTFile> handles, List<PstWorkUnit> units, int from, int to) {
+		this.step = step;
+		this.pstFileName = pstFileName;
+		this.row = row;
+		this.data = data;
+		this.sink = sink;
+		this.checkpoint = checkpoint;
+		this.handles = handles;
+		this.units = units;
+		this.from = from;
+		this.to = to;
+	}
+
+	protected void compute() {
+		if (step.isStopped())
+			return;
+
+		if (to - from == 1) {
+			try {
+				PSTFile pstFile = handles.get(Thread.currentThread());
+				if (pstFile == null) {
+					pstFile = step.openPstFile(pstFileName, data);
+					handles.put(Thread.currentThread(), pstFile);
+				}
+				step.readWorkUnit(pstFileName, pstFile, units.get(from), row, data, sink, checkpoint);
+			} catch (Exception e) {
+				throw new RuntimeException(e);
+			}
+			return;
+		}
+
+		long total = 0;
+		for (int i = from; i < to; i++)
+			total += units.get(i).count;
+
+		// split where the first half reaches half of the messages, keeping at least one unit per side
+		int middle = from + 1;
+		long firstHalf = units.get(from).count;
+		while (middle < to - 1 && firstHalf + units.get(middle).count <= total / 2) {
+			firstHalf += units.get(middle).count;
+			middle++;
+		}
+
+		invokeAll(
+			new PstFolderTask(step, pstFileName, row, data, sink, checkpoint, handles, units, from, middle),
+			new PstFolderTask(step, pstFileName, row, data, sink, checkpoint, handles, units, middle, to)
+		);
+	}
+}
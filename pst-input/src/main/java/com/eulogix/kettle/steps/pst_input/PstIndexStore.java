@@ -0,0 +1,185 @@
+package com.eulogix.kettle.steps.pst_input;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Keeps one sidecar index per PST file in a local folder, named after a hash of the file path.
+ *
+ * libpst resolves descriptors and blocks by walking the node and block B-trees of the file,
+ * and it does so again on every open. The index holds the pages of the file read while
+ * opening it and walking its folder tree, so that later opens find them in memory instead of
+ * seeking all over the file. An index only applies while the file keeps the size and last
+ * modification time it was built for, otherwise it is rebuilt on the next open.
+ *
+ * Loaded indexes are shared by the handles open on the same file and dropped from memory
+ * when the last one releases it, so only the indexes of the files being read are kept.
+ */
+public class PstIndexStore {
+
+	private static final int FORMAT_VERSION = 1;
+
+	private File folder;
+
+	/**
+	 * indexes in use, shared by the worker threads reading the same file
+	 */
+	private Map<String, LoadedIndex> loaded = new HashMap<String, LoadedIndex>();
+
+	private static class LoadedIndex {
+		Map<Long, byte[]> pages;
+		int holders;
+
+		LoadedIndex(Map<Long, byte[]> pages) {
+			this.pages = pages;
+		}
+	}
+
+	public PstIndexStore(File folder) throws IOException {
+		this.folder = folder;
+		if (!folder.isDirectory() && !folder.mkdirs())
+			throw new IOException("Unable to create index folder " + folder);
+	}
+
+	/**
+	 * returns the pages recorded for the file, or null if there is no index matching its current content.
+	 * The pages are held until passed to release()
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public Map<Long, byte[]> load(File file) throws IOException {
+		String key = PstPageCache.fileKey(file);
+		synchronized (loaded) {
+			LoadedIndex index = loaded.get(key);
+			if (index != null) {
+				index.holders++;
+				return index.pages;
+			}
+		}
+
+		Map<Long, byte[]> pages;
+		File indexFile = getIndexFile(file);
+		if (!indexFile.isFile())
+			return null;
+
+		// a file of this size cannot have more pages, nor pages past its end
+		long lastPage = file.length() / PstPageCache.PAGE_SIZE;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+		try {
+			if (in.readInt() != FORMAT_VERSION || !key.equals(in.readUTF()))
+				return null;
+			int count = in.readInt();
+			if (count < 0 || count > lastPage + 1)
+				return null;
+			pages = new HashMap<Long, byte[]>(count * 2);
+			for (int i = 0; i < count; i++) {
+				long pageIndex = in.readLong();
+				int length = in.readInt();
+				if (pageIndex < 0 || pageIndex > lastPage || length < 0 || length > PstPageCache.PAGE_SIZE)
+					return null;
+				byte[] page = new byte[length];
+				in.readFully(page);
+				pages.put(pageIndex, page);
+			}
+		} catch (IOException | RuntimeException e) {
+			// truncated or corrupted indexes are simply rebuilt
+			return null;
+		} finally {
+			in.close();
+		}
+
+		return hold(key, Collections.unmodifiableMap(pages));
+	}
+
+	/**
+	 * writes the index to a temporary file and renames it, so that a crash never leaves a partial index
+	 * @param file
+	 * @param pages
+	 * @return the pages shared with the other handles on the file, held until passed to release()
+	 * @throws IOException
+	 */
+	public Map<Long, byte[]> save(File file, Map<Long, byte[]> pages) throws IOException {
+		String key = PstPageCache.fileKey(file);
+		File indexFile = getIndexFile(file);
+		File tempFile = new File(folder, indexFile.getName() + "." + Thread.currentThread().getId() + ".tmp");
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+		try {
+			out.writeInt(FORMAT_VERSION);
+			out.writeUTF(key);
+			out.writeInt(pages.size());
+			for (Map.Entry<Long, byte[]> page : pages.entrySet()) {
+				out.writeLong(page.getKey());
+				out.writeInt(page.getValue().length);
+				out.write(page.getValue());
+			}
+		} finally {
+			out.close();
+		}
+		Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return hold(key, Collections.unmodifiableMap(pages));
+	}
+
+	/**
+	 * another thread may have loaded the same index meanwhile: its pages are the ones shared
+	 */
+	private Map<Long, byte[]> hold(String key, Map<Long, byte[]> pages) {
+		synchronized (loaded) {
+			LoadedIndex index = loaded.get(key);
+			if (index == null) {
+				index = new LoadedIndex(pages);
+				loaded.put(key, index);
+			}
+			index.holders++;
+			return index.pages;
+		}
+	}
+
+	/**
+	 * called when a handle using the pages is closed, the last one drops them from memory
+	 * @param pages	as returned by load() or save()
+	 */
+	public void release(Map<Long, byte[]> pages) {
+		synchronized (loaded) {
+			// only the files being read are loaded, a scan is enough
+			Iterator<LoadedIndex> indexes = loaded.values().iterator();
+			while (indexes.hasNext()) {
+				LoadedIndex index = indexes.next();
+				if (index.pages == pages) {
+					if (--index.holders == 0)
+						indexes.remove();
+					return;
+				}
+			}
+		}
+	}
+
+	private File getIndexFile(File file) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			byte[] hash = digest.digest(file.getAbsolutePath().getBytes(StandardCharsets.UTF_8));
+			StringBuilder name = new StringBuilder();
+			for (byte b : hash)
+				name.append(String.format("%02x", b));
+			return new File(folder, name.append(".idx").toString());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
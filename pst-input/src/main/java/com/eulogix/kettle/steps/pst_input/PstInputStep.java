@@ -24,12 +24,21 @@ package com.eulogix.kettle.steps.pst_input;
 
 import java.io.File;
 import java.io.IOException;
+import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
-import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.io.FileUtils;
+import org.pentaho.di.core.RowSet;
 import org.pentaho.di.core.exception.KettleException;
 import org.pentaho.di.core.exception.KettleStepException;
 import org.pentaho.di.core.row.RowDataUtil;
@@ -46,8 +55,11 @@ import com.eulogix.kettle.lib.EasyStep;
 import com.google.gson.JsonObject;
 import com.pff.PSTException;
 import com.pff.PSTFile;
+import com.pff.PSTFileContent;
+import com.pff.PSTRAFileContent;
 import com.pff.PSTFolder;
 import com.pff.PSTMessage;
+import com.pff.PSTObject;
 
 /**
  * This class is part of the demo step plug-in implementation.
@@ -106,9 +118,90 @@ public class PstInputStep extends EasyStep implements StepInterface {
 	public boolean init(StepMetaInterface smi, StepDataInterface sdi) {
 		// Casting to step-specific implementation classes is safe
 		PstInputStepMeta meta = (PstInputStepMeta) smi;
-		PstInputStepData data = (PstInputStepData) sdi;
+		final PstInputStepData data = (PstInputStepData) sdi;
+
+		if (!super.init(meta, data))
+			return false;
+
+		data.selectedFields = meta.getSelectedFields();
+		try {
+			data.filter = new PstMessageFilter(getSetting("dateFrom"), getSetting("dateTo"),
+					getSetting("folderInclude"), getSetting("folderExclude"), getSetting("messageClassInclude"));
+		} catch (ParseException e) {
+			logError("Invalid date filter: " + e.getMessage());
+			return false;
+		}
+		
+		String checkpointFolder = getSetting("checkpointFolder");
+		if (!checkpointFolder.isEmpty()) {
+			try {
+				// a checkpoint only applies to the settings that decide which rows a file produces
+				List<String> settings = new ArrayList<String>();
+				for (String key : new String[] { "dateFrom", "dateTo", "folderInclude", "folderExclude", "messageClassInclude", "extractAttachments" })
+					settings.add(getSetting(key));
+				for (PstField field : data.selectedFields)
+					settings.add(field.name());
+				data.checkpointStore = new PstCheckpointStore(new File(checkpointFolder), PstCheckpointStore.fingerprint(settings.toArray(new String[settings.size()])));
+				data.checkpoints = new PstCheckpointQueue(data.checkpointStore);
+			} catch (IOException e) {
+				logError("Unable to use checkpoint folder " + checkpointFolder, e);
+				return false;
+			}
+		}
+		
+		String indexFolder = getSetting("indexFolder");
+		if (!indexFolder.isEmpty()) {
+			try {
+				data.indexStore = new PstIndexStore(new File(indexFolder));
+			} catch (IOException e) {
+				logError("Unable to use index folder " + indexFolder, e);
+				return false;
+			}
+		}
+
+		if (getBooleanSetting("extractAttachments")) {
+			String attachmentFolder = getSetting("attachmentFolder");
+			if (attachmentFolder.isEmpty()) {
+				logError("An attachment folder is required to extract attachments");
+				return false;
+			}
+			try {
+				data.attachmentWriter = new PstAttachmentWriter(new File(attachmentFolder));
+			} catch (IOException e) {
+				logError("Unable to use attachment folder " + attachmentFolder, e);
+				return false;
+			}
+		}
+
+		data.memoryMapped = getBooleanSetting("memoryMapped");
+		int pageCacheMb = getIntSetting("pageCacheMb", 0);
+		if (data.memoryMapped && pageCacheMb > 0) {
+			logBasic("Memory mapped reads rely on the OS page cache, the shared page cache is not used");
+		} else if (pageCacheMb > 0) {
+			data.pageCache = PstPageCache.acquire(pageCacheMb * 1024L * 1024L);
+		}
 
-		return super.init(meta, data);
+		data.continueOnError = getBooleanSetting("continueOnError");
+		data.concurrentFiles = Math.max(1, getIntSetting("concurrentFiles", 1));
+		int folderWorkers = getIntSetting("folderWorkers", 0);
+		if (folderWorkers > 1) {
+			data.folderPool = new ForkJoinPool(folderWorkers);
+		}
+		// rows produced on worker threads are queued and handed over to putRow() by the step thread
+		if (data.concurrentFiles > 1 || data.folderPool != null) {
+			data.filePool = Executors.newFixedThreadPool(data.concurrentFiles);
+			data.outputQueue = new ArrayBlockingQueue<Object>(data.concurrentFiles * PstInputStepData.QUEUED_ROWS_PER_WORKER);
+		}
+		
+		data.rowSink = new PstRowSink() {
+			public void emit(Object[] outputRow) throws KettleStepException {
+				putOutputRow(outputRow, data);
+			}
+			public void checkpoint(PstCheckpoint checkpoint) {
+				data.checkpoints.add(checkpoint.snapshot());
+			}
+		};
+		return true;
 	}	
 
 	/**
@@ -136,99 +229,522 @@ public class PstInputStep extends EasyStep implements StepInterface {
 
 		// safely cast the step settings (meta) and runtime info (data) to specific implementations 
 		PstInputStepMeta meta = (PstInputStepMeta) smi;
-		PstInputStepData data = (PstInputStepData) sdi;
+		final PstInputStepData data = (PstInputStepData) sdi;
 
-		// get incoming row, getRow() potentially blocks waiting for more rows, returns null if no more rows expected
-		Object[] r = getRow(); 
-		
-		// if no more rows are expected, indicate step is finished and processRow() should not be called again
-		if (r == null){
-			setOutputDone();
-			return false;
+		// with more than one concurrent file (or folder workers) the incoming files are parsed by the worker pool
+		if (data.filePool != null) {
+			return processRowConcurrently(meta, data);
 		}
 
-		// the "first" flag is inherited from the base step implementation
-		// it is used to guard some processing tasks, like figuring out field indexes
-		// in the row structure that only need to be done once
-		if (first) {
-			first = false;
-			// clone the input row structure and place it in our data object
-			data.outputRowMeta = (RowMetaInterface) getInputRowMeta().clone();
-			// use meta.getFields() to change it, so it reflects the output row structure 
-			meta.getFields(data.outputRowMeta, getStepname(), null, null, this, null, null);
+		// a file is read over several calls, a bounded batch of messages at a time, so that
+		// the step can be stopped and reports progress while a large file is being read
+		if (data.messages == null) {
+			// get incoming row, getRow() potentially blocks waiting for more rows, returns null if no more rows expected
+			Object[] r = getRow(); 
+			
+			// if no more rows are expected, indicate step is finished and processRow() should not be called again
+			if (r == null){
+				waitForCheckpoints(data);
+				setOutputDone();
+				return false;
+			}
+	
+			// the "first" flag is inherited from the base step implementation
+			// it is used to guard some processing tasks, like figuring out field indexes
+			// in the row structure that only need to be done once
+			if (first) {
+				first = false;
+				prepareOutputRowMeta(meta, data);
+			}
+			
+			String pstFileName = getString(r, "fileName");
+			try {
+				data.messages = openFile(pstFileName, data, data.rowSink);
+				data.messagesRow = r;
+			} catch (Exception e) {
+				fileFailed(pstFileName, e, data);
+			}
+			return true;
 		}
 		
-		String pstFileName = getFieldValue(r, meta.fields.get("fileName").toString()).toString();
-				
+		PstRowSink sink = data.rowSink;
 		try {
-            PSTFile pstFile = new PSTFile(pstFileName);
-            processFolder(pstFile.getRootFolder(), r, data);
-        } catch (Exception err) {
-            err.printStackTrace();
-        }
-	
-		// log progress if it is time to to so
-		if (checkFeedback(getLinesRead())) {
-			logBasic("Linenr " + getLinesRead()); // Some basic logging
+			for (int i = 0; i < PstInputStepData.MESSAGES_PER_CALL && !isStopped(); i++) {
+				PSTMessage email = data.messages.next();
+				if (email == null) {
+					completeFile(data.messages);
+					closeFile(data);
+					break;
+				}
+				emitMessage(data.messages.getFileName(), data.messagesRow, data.messages.getFolder(), email, data, sink);
+				
+				// log progress if it is time to to so
+				if (checkFeedback(getLinesWritten())) {
+					logBasic("Rows " + getLinesWritten() + ", reading " + data.messages.getFolderPath() + " in " + data.messages.getFileName());
+				}
+			}
+		} catch (KettleStepException e) {
+			throw e;
+		} catch (Exception e) {
+			String pstFileName = data.messages.getFileName();
+			closeFile(data);
+			fileFailed(pstFileName, e, data);
 		}
+		saveConsumedCheckpoints(data);
 
 		// indicate that processRow() should be called again
 		return true;
 	}
 	
-	protected void processFolder(PSTFolder folder, Object[] row, PstInputStepData data)
-            throws PSTException, java.io.IOException, KettleStepException
-    {
-		Object[] outputRow;
+	/**
+	 * queues each incoming file on the worker pool and hands the rows produced by the
+	 * workers over to putRow(), which must only be called by the step thread
+	 */
+	protected boolean processRowConcurrently(PstInputStepMeta meta, final PstInputStepData data) throws KettleException {
+		if (!data.inputDone) {
+			Object[] r = getRow();
+			if (r == null) {
+				data.inputDone = true;
+			} else {
+				if (first) {
+					first = false;
+					prepareOutputRowMeta(meta, data);
+				}
+				submitFile(getString(r, "fileName"), r, data);
+			}
+		}
 		
-		// go through the folders...
-        if (folder.hasSubfolders()) {
-            Vector<PSTFolder> childFolders = folder.getSubFolders();
-            for (PSTFolder childFolder : childFolders) {
-                processFolder(childFolder, row, data);
-            }
-        }
-
-        // and now the emails for this folder
-        if (folder.getContentCount() > 0) {
-            PSTMessage email = (PSTMessage)folder.getNextChild();
-            while (email != null) {
-                
-                outputRow = RowDataUtil.addValueData(row, data.outputRowMeta.size() - 1, email.isFromMe());
-                outputRow = RowDataUtil.addValueData(outputRow, data.outputRowMeta.size() - 2, email.hasReplied());
-                outputRow = RowDataUtil.addValueData(outputRow, data.outputRowMeta.size() - 3, email.isRead());
-                outputRow = RowDataUtil.addValueData(outputRow, data.outputRowMeta.size() - 4, email.hasForwarded());
-                outputRow = RowDataUtil.addValueData(outputRow, data.outputRowMeta.size() - 5, email.isReplyRequested());
-                outputRow = RowDataUtil.addValueData(outputRow, data.outputRowMeta.size() - 6, email.getMessageToMe());
-                outputRow = RowDataUtil.addValueData(outputRow, data.outputRowMeta.size() - 7, email.getMessageCcMe());
-                outputRow = RowDataUtil.addValueData(outputRow, data.outputRowMeta.size() - 8, email.getMessageClass());
-                outputRow = RowDataUtil.addValueData(outputRow, data.outputRowMeta.size() - 9, email.getInReplyToId());
-                outputRow = RowDataUtil.addValueData(outputRow, data.outputRowMeta.size() - 10, Long.valueOf( email.getImportance() ) );
-                outputRow = RowDataUtil.addValueData(outputRow, data.outputRowMeta.size() - 11, Long.valueOf( email.getNumberOfRecipients() ) );
-                outputRow = RowDataUtil.addValueData(outputRow, data.outputRowMeta.size() - 12, Long.valueOf( email.getNumberOfAttachments() ) );
-                outputRow = RowDataUtil.addValueData(outputRow, data.outputRowMeta.size() - 13, Long.valueOf( email.getMessageSize() ) );
-                outputRow = RowDataUtil.addValueData(outputRow, data.outputRowMeta.size() - 14, email.getDisplayBCC());
-                outputRow = RowDataUtil.addValueData(outputRow, data.outputRowMeta.size() - 15, email.getDisplayCC());
-                outputRow = RowDataUtil.addValueData(outputRow, data.outputRowMeta.size() - 16, email.getDisplayTo());
-                outputRow = RowDataUtil.addValueData(outputRow, data.outputRowMeta.size() - 17, email.getSenderEmailAddress());
-                outputRow = RowDataUtil.addValueData(outputRow, data.outputRowMeta.size() - 18, email.getSenderName());
-                outputRow = RowDataUtil.addValueData(outputRow, data.outputRowMeta.size() - 19, email.getBodyPrefix());
-                outputRow = RowDataUtil.addValueData(outputRow, data.outputRowMeta.size() - 20, email.getBodyHTML());
-                outputRow = RowDataUtil.addValueData(outputRow, data.outputRowMeta.size() - 21, email.getBody());               
-                outputRow = RowDataUtil.addValueData(outputRow, data.outputRowMeta.size() - 22, email.getSubject());
-                outputRow = RowDataUtil.addValueData(outputRow, data.outputRowMeta.size() - 23, email.getClientSubmitTime());
-                outputRow = RowDataUtil.addValueData(outputRow, data.outputRowMeta.size() - 24, folder.getDisplayName());
-                outputRow = RowDataUtil.addValueData(outputRow, data.outputRowMeta.size() - 25, email.getDescriptorNodeId());
-       		 
-       		 	putRow(data.outputRowMeta, outputRow);
-       		 	
-                email = (PSTMessage)folder.getNextChild();
-            }
-        }
-    }
+		// a worker failure stops the step, unless unreadable files are to be skipped
+		KettleException failure = data.workerFailure.get();
+		if (failure != null)
+			throw failure;
+		
+		try {
+			// once all the files are queued wait for the workers, otherwise just take what is ready
+			Object queued = data.inputDone ? data.outputQueue.poll(100, TimeUnit.MILLISECONDS) : data.outputQueue.poll();
+			while (queued != null) {
+				if (queued instanceof PstCheckpoint)
+					data.checkpoints.add((PstCheckpoint) queued);
+				else
+					putOutputRow((Object[]) queued, data);
+				queued = data.outputQueue.poll();
+			}
+		} catch (InterruptedException e) {
+			throw new KettleException("Interrupted while waiting for PST workers", e);
+		}
+		saveConsumedCheckpoints(data);
+		
+		if (checkFeedback(getLinesRead())) {
+			logBasic("Linenr " + getLinesRead() + ", files in progress: " + data.pendingFiles.get());
+		}
+		
+		// workers put their last row before decrementing the counter, so checking the queue afterwards is safe
+		if (data.inputDone && data.pendingFiles.get() == 0 && data.outputQueue.isEmpty()) {
+			waitForCheckpoints(data);
+			setOutputDone();
+			return false;
+		}
+		return true;
+	}
+	
+	protected void submitFile(final String pstFileName, final Object[] row, final PstInputStepData data) {
+		data.pendingFiles.incrementAndGet();
+		data.filePool.submit(new Runnable() {
+			public void run() {
+				try {
+					readFile(pstFileName, row, data, new PstRowSink() {
+						public void emit(Object[] outputRow) throws KettleStepException {
+							queue(outputRow);
+						}
+						// queued after the rows emitted before it, the step thread sees it once they are put
+						public void checkpoint(PstCheckpoint checkpoint) throws KettleStepException {
+							queue(checkpoint.snapshot());
+						}
+						private void queue(Object item) throws KettleStepException {
+							try {
+								while (!data.outputQueue.offer(item, 100, TimeUnit.MILLISECONDS)) {
+									if (isStopped())
+										throw new KettleStepException("Step stopped while reading " + pstFileName);
+								}
+							} catch (InterruptedException e) {
+								throw new KettleStepException("Interrupted while reading " + pstFileName, e);
+							}
+						}
+					});
+				} catch (Exception e) {
+					if (isStopped()) {
+						// the step is already going down
+					} else if (data.continueOnError) {
+						logError("Skipping PST file " + pstFileName + ", it could not be read", e);
+					} else {
+						// handed over to the step thread, which alone may fail the step
+						data.workerFailure.compareAndSet(null, new KettleException("Error reading PST file " + pstFileName, e));
+					}
+				} finally {
+					data.pendingFiles.decrementAndGet();
+				}
+			}
+		});
+	}
+	
+	/**
+	 * a file that cannot be read fails the step, which sets its errors and stops the
+	 * transformation, unless the step is configured to skip unreadable files
+	 */
+	protected void fileFailed(String pstFileName, Exception e, PstInputStepData data) throws KettleException {
+		if (!data.continueOnError)
+			throw new KettleException("Error reading PST file " + pstFileName, e);
+		logError("Skipping PST file " + pstFileName + ", it could not be read", e);
+	}
 	
-	public Object getFieldValue(Object[] rowData, String fieldName) {
-		return rowData[ getInputRowMeta().indexOfValue( fieldName ) ];
+	/**
+	 * puts a row on the step thread, counting it for the checkpoints
+	 */
+	protected void putOutputRow(Object[] outputRow, PstInputStepData data) throws KettleStepException {
+		putRow(data.outputRowMeta, outputRow);
+		if (data.checkpoints != null)
+			data.checkpoints.rowPut();
+	}
+	
+	/**
+	 * saves the checkpoints whose rows have all been read by the next steps
+	 */
+	protected void saveConsumedCheckpoints(PstInputStepData data) throws KettleException {
+		if (data.checkpoints == null)
+			return;
+		try {
+			data.checkpoints.saveConsumed(getQueuedRows());
+		} catch (IOException e) {
+			throw new KettleException("Unable to save PST checkpoint", e);
+		}
+	}
+	
+	/**
+	 * once all the files are read, waits for the next steps to consume the last rows so
+	 * that the last checkpoints can be saved. If the step is stopped, or no next step is
+	 * still running to consume them, they are left unsaved, and the rows they cover are
+	 * read again on the next run.
+	 */
+	protected void waitForCheckpoints(PstInputStepData data) throws KettleException {
+		saveConsumedCheckpoints(data);
+		while (data.checkpoints != null && !data.checkpoints.isEmpty() && !isStopped() && hasRunningTargets()) {
+			try {
+				Thread.sleep(PstInputStepData.CHECKPOINT_WAIT_MILLIS);
+			} catch (InterruptedException e) {
+				throw new KettleException("Interrupted while waiting for the next steps", e);
+			}
+			saveConsumedCheckpoints(data);
+		}
+	}
+	
+	/**
+	 * true while a step reading the rows of this one is still running. Steps that cannot
+	 * be found in this transformation (e.g. remote ones) are not waited for
+	 */
+	protected boolean hasRunningTargets() {
+		for (RowSet rowSet : getOutputRowSets()) {
+			StepInterface target = getTrans().findStepInterface(rowSet.getDestinationStepName(), rowSet.getDestinationStepCopy());
+			if (target != null && target.isRunning())
+				return true;
+		}
+		return false;
+	}
+	
+	protected void prepareOutputRowMeta(PstInputStepMeta meta, PstInputStepData data) throws KettleStepException {
+		// clone the input row structure and place it in our data object
+		data.outputRowMeta = (RowMetaInterface) getInputRowMeta().clone();
+		// use meta.getFields() to change it, so it reflects the output row structure 
+		meta.getFields(data.outputRowMeta, getStepname(), null, null, this, null, null);
+		
+		// resolve the output positions once, rows are then filled in a single pass.
+		// getFields() appends the selected fields after the input ones, so positions are used
+		// rather than names, which may clash with incoming fields
+		data.inputRowSize = getInputRowMeta().size();
+		data.outputRowSize = data.outputRowMeta.size();
+		data.fieldPositions = new int[PstField.values().length];
+		Arrays.fill(data.fieldPositions, -1);
+		for (int i = 0; i < data.selectedFields.size(); i++) {
+			data.fieldPositions[data.selectedFields.get(i).ordinal()] = data.inputRowSize + i;
+		}
+		// getFields() appends the attachment fields after the message ones
+		data.attachmentFieldIndex = data.inputRowSize + data.selectedFields.size();
+	}
+	
+	protected void readFile(String pstFileName, Object[] row, PstInputStepData data, PstRowSink sink)
+			throws PSTException, IOException, KettleStepException
+	{
+		if (data.folderPool != null) {
+			PstCheckpoint checkpoint = loadCheckpoint(pstFileName, data);
+			if (checkpoint != null && checkpoint.complete)
+				return;
+			readFileByFolders(pstFileName, row, data, sink, checkpoint);
+			if (checkpoint != null && !isStopped()) {
+				checkpoint.complete = true;
+				sink.checkpoint(checkpoint);
+			}
+			return;
+		}
+		
+		PstMessageIterator messages = openFile(pstFileName, data, sink);
+		if (messages == null)
+			return;
+		try {
+			PSTMessage email = messages.next();
+			while (email != null) {
+				emitMessage(pstFileName, row, messages.getFolder(), email, data, sink);
+				email = messages.next();
+			}
+			completeFile(messages);
+		} finally {
+			messages.close();
+		}
+	}
+	
+	/**
+	 * opens a PST file, reading it through memory mappings or the page cache when enabled,
+	 * with the pages of its sidecar index served from memory
+	 */
+	protected PSTFile openPstFile(String pstFileName, PstInputStepData data) throws PSTException, IOException {
+		File file = new File(pstFileName);
+		PSTFileContent content;
+		if (data.memoryMapped) {
+			content = new MappedPstFileContent(file);
+		} else if (data.pageCache != null) {
+			content = new CachedPstFileContent(file, data.pageCache);
+		} else {
+			content = new PSTRAFileContent(file);
+		}
+		
+		try {
+			if (data.indexStore != null)
+				return openIndexedPstFile(file, content, data);
+			return new PSTFile(content);
+		} catch (PSTException | IOException e) {
+			content.close();
+			throw e;
+		}
+	}
+	
+	/**
+	 * the first open of a file records the pages read while opening it and walking
+	 * its folder tree, and saves them as its index
+	 */
+	protected PSTFile openIndexedPstFile(File file, PSTFileContent content, PstInputStepData data) throws PSTException, IOException {
+		Map<Long, byte[]> pages = data.indexStore.load(file);
+		IndexedPstFileContent indexed = new IndexedPstFileContent(content, pages, data.indexStore);
+		try {
+			if (pages != null)
+				return new PSTFile(indexed);
+			
+			indexed.startRecording();
+			PSTFile pstFile = new PSTFile(indexed);
+			walkFolders(pstFile.getRootFolder());
+			pages = indexed.stopRecording();
+			indexed.useIndex(data.indexStore.save(file, pages));
+			logDetailed("Built the index of PST file " + file + ", " + pages.size() + " pages");
+			return pstFile;
+		} catch (PSTException | IOException e) {
+			// the content is closed by the caller
+			indexed.releaseIndex();
+			throw e;
+		}
+	}
+	
+	private void walkFolders(PSTFolder folder) throws PSTException, IOException {
+		folder.getContentCount();
+		if (folder.hasSubfolders()) {
+			for (PSTFolder childFolder : folder.getSubFolders()) {
+				childFolder.getDisplayName();
+				walkFolders(childFolder);
+			}
+		}
+	}
+	
+	/**
+	 * opens a file for reading, resuming from its checkpoint if any
+	 * @return null if the file is unchanged since it was last read completely
+	 */
+	protected PstMessageIterator openFile(String pstFileName, PstInputStepData data, PstRowSink sink) throws PSTException, IOException {
+		PstCheckpoint checkpoint = loadCheckpoint(pstFileName, data);
+		if (checkpoint != null && checkpoint.complete)
+			return null;
+		return new PstMessageIterator(this, pstFileName, data, checkpoint, sink);
+	}
+	
+	protected PstCheckpoint loadCheckpoint(String pstFileName, PstInputStepData data) throws IOException {
+		if (data.checkpointStore == null)
+			return null;
+		PstCheckpoint checkpoint = data.checkpointStore.load(new File(pstFileName));
+		if (checkpoint.complete)
+			logDetailed("Skipping PST file " + pstFileName + ", unchanged since it was last read");
+		return checkpoint;
+	}
+	
+	/**
+	 * marks the file as read in its checkpoint, unless the step was stopped halfway
+	 */
+	protected void completeFile(PstMessageIterator messages) throws KettleStepException {
+		PstCheckpoint checkpoint = messages.getCheckpoint();
+		if (checkpoint != null && !isStopped()) {
+			checkpoint.complete = true;
+			messages.getSink().checkpoint(checkpoint);
+		}
+	}
+	
+	/**
+	 * closes the file being read serially, its checkpoint keeps the position reached
+	 */
+	protected void closeFile(PstInputStepData data) {
+		if (data.messages == null)
+			return;
+		try {
+			data.messages.close();
+		} catch (IOException e) {
+			logError("Unable to close PST file " + data.messages.getFileName(), e);
+		}
+		data.messages = null;
+		data.messagesRow = null;
+	}
+	
+	/**
+	 * splits the folder tree of the file in work units sized on the folder content count
+	 * and reads them on the fork/join pool, each worker through its own PSTFile handle
+	 */
+	protected void readFileByFolders(String pstFileName, Object[] row, PstInputStepData data, PstRowSink sink, PstCheckpoint checkpoint)
+			throws PSTException, IOException, KettleStepException
+	{
+		List<PstWorkUnit> units = new ArrayList<PstWorkUnit>();
+		PSTFile pstFile = openPstFile(pstFileName, data);
+		try {
+			planFolder(pstFile.getRootFolder(), "", units, data, checkpoint);
+		} finally {
+			pstFile.close();
+		}
+		if (units.isEmpty())
+			return;
+		Collections.sort(units);
+		
+		Map<Thread, PSTFile> handles = new ConcurrentHashMap<Thread, PSTFile>();
+		try {
+			data.folderPool.invoke(new PstFolderTask(this, pstFileName, row, data, sink, checkpoint, handles, units, 0, units.size()));
+		} catch (RuntimeException e) {
+			Throwable cause = e;
+			while (cause instanceof RuntimeException && cause.getCause() != null)
+				cause = cause.getCause();
+			throw new KettleStepException("Error reading PST file " + pstFileName, cause);
+		} finally {
+			for (PSTFile handle : handles.values()) {
+				handle.close();
+			}
+		}
+	}
+	
+	protected void planFolder(PSTFolder folder, String folderPath, List<PstWorkUnit> units, PstInputStepData data, PstCheckpoint checkpoint)
+			throws PSTException, IOException
+	{
+		if (folder.hasSubfolders()) {
+			for (PSTFolder childFolder : folder.getSubFolders()) {
+				String childPath = PstMessageFilter.childPath(folderPath, childFolder.getDisplayName());
+				if (!data.filter.isFolderExcluded(childPath))
+					planFolder(childFolder, childPath, units, data, checkpoint);
+			}
+		}
+		
+		long folderId = folder.getDescriptorNodeId();
+		if (!data.filter.isFolderIncluded(folderPath) || (checkpoint != null && checkpoint.isFolderCompleted(folderId)))
+			return;
+		
+		int contentCount = folder.getContentCount();
+		for (int start = 0; start < contentCount; start += PstFolderTask.MESSAGES_PER_UNIT) {
+			units.add(new PstWorkUnit(folderId, start, Math.min(PstFolderTask.MESSAGES_PER_UNIT, contentCount - start)));
+			if (checkpoint != null)
+				checkpoint.unitPlanned(folderId);
+		}
+	}
+	
+	/**
+	 * reads the messages of a single work unit, called on the fork/join worker threads
+	 */
+	protected void readWorkUnit(String pstFileName, PSTFile pstFile, PstWorkUnit unit, Object[] row, PstInputStepData data, PstRowSink sink, PstCheckpoint checkpoint)
+			throws PSTException, IOException, KettleStepException
+	{
+		PSTFolder folder = (PSTFolder) PSTObject.detectAndLoadPSTObject(pstFile, unit.folderId);
+		folder.moveChildCursorTo(unit.start);
+		
+		for (int i = 0; i < unit.count && !isStopped(); i++) {
+			PSTMessage email = (PSTMessage) folder.getNextChild();
+			if (email == null)
+				break;
+			if (data.filter.accept(email))
+				emitMessage(pstFileName, row, folder, email, data, sink);
+		}
+		
+		// only whole folders are recorded in this mode
+		if (checkpoint != null && !isStopped() && checkpoint.unitCompleted(unit.folderId)) {
+			sink.checkpoint(checkpoint);
+		}
+	}
+	
+	/**
+	 * moves the folder cursor past the children already read according to the checkpoint,
+	 * after checking that the last one has the recorded descriptor id, and returns the
+	 * position of the next child to read
+	 */
+	protected int resumeFolder(PSTFolder folder, PstCheckpoint checkpoint) throws PSTException, IOException {
+		int position = checkpoint == null ? 0 : checkpoint.getResumePosition(folder.getDescriptorNodeId());
+		if (position == 0)
+			return 0;
+		
+		folder.moveChildCursorTo(position - 1);
+		PSTObject lastRead = folder.getNextChild();
+		if (lastRead != null && lastRead.getDescriptorNodeId() == checkpoint.lastDescriptorId) {
+			logDetailed("Resuming folder " + folder.getDisplayName() + " at message " + position);
+			return position;
+		}
+		
+		logBasic("Checkpoint of folder " + folder.getDisplayName() + " does not match its content, reading it again");
+		folder.moveChildCursorTo(0);
+		return 0;
+	}
+	
+	/**
+	 * emits the row of a message, or in attachment mode one row per attachment,
+	 * once its content has been written to the attachment folder
+	 */
+	protected void emitMessage(String pstFileName, Object[] row, PSTFolder folder, PSTMessage email, PstInputStepData data, PstRowSink sink)
+			throws PSTException, IOException, KettleStepException
+	{
+		if (data.attachmentWriter == null) {
+			sink.emit(buildOutputRow(row, folder, email, data));
+			return;
+		}
+		
+		// the message properties are read and boxed once, then copied to each attachment row
+		Object[][] attachments = data.attachmentWriter.write(new File(pstFileName), email);
+		Object[] messageRow = attachments.length == 0 ? null : buildOutputRow(row, folder, email, data);
+		for (int i = 0; i < attachments.length; i++) {
+			Object[] outputRow = messageRow;
+			if (i < attachments.length - 1) {
+				outputRow = RowDataUtil.allocateRowData(data.outputRowSize);
+				System.arraycopy(messageRow, 0, outputRow, 0, data.attachmentFieldIndex);
+			}
+			System.arraycopy(attachments[i], 0, outputRow, data.attachmentFieldIndex, attachments[i].length);
+			sink.emit(outputRow);
+		}
+	}
+	
+	protected Object[] buildOutputRow(Object[] row, PSTFolder folder, PSTMessage email, PstInputStepData data)
+			throws PSTException, IOException
+	{
+		// a single allocation per message: the input values are copied once and the
+		// selected properties are written straight to their precomputed positions
+		Object[] outputRow = RowDataUtil.allocateRowData(data.outputRowSize);
+		System.arraycopy(row, 0, outputRow, 0, data.inputRowSize);
+		
+		// only the selected properties are read from the message
+		PstField.read(folder, email, data.fieldPositions, outputRow);
+		
+		return outputRow;
 	}
 	
 	/**
@@ -251,6 +767,20 @@ public class PstInputStep extends EasyStep implements StepInterface {
 		PstInputStepMeta meta = (PstInputStepMeta) smi;
 		PstInputStepData data = (PstInputStepData) sdi;
 		
+		closeFile(data);
+		if (data.filePool != null) {
+			data.filePool.shutdownNow();
+		}
+		if (data.folderPool != null) {
+			data.folderPool.shutdownNow();
+		}
+		if (data.pageCache != null) {
+			logBasic("PST page cache (shared): " + data.pageCache.getHits() + " hits, " + data.pageCache.getMisses() + " misses, "
+					+ data.pageCache.getCachedBytes() / (1024 * 1024) + " MB cached");
+			PstPageCache.release(data.pageCache);
+			data.pageCache = null;
+		}
+		
 		super.dispose(meta, data);
 	}
 
@@ -22,6 +22,14 @@
 
 package com.eulogix.kettle.steps.pst_input;
 
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.pentaho.di.core.exception.KettleException;
 import org.pentaho.di.core.row.RowMetaInterface;
 import org.pentaho.di.trans.step.BaseStepData;
 import org.pentaho.di.trans.step.StepDataInterface;
@@ -50,6 +58,96 @@ public class PstInputStepData extends BaseStepData {
 
 	public RowMetaInterface outputRowMeta;
 	
+	/**
+	 * the message fields to read, the others are never touched
+	 */
+	public List<PstField> selectedFields;
+	
+	/**
+	 * output row layout, resolved on the first row
+	 */
+	public int inputRowSize;
+	public int outputRowSize;
+	
+	/**
+	 * output position of each message field by ordinal, -1 for the fields not selected
+	 */
+	public int[] fieldPositions;
+	
+	public PstMessageFilter filter;
+	
+	/**
+	 * attachment mode: the writer of the attachment files and the output position of the attachment fields
+	 */
+	public PstAttachmentWriter attachmentWriter;
+	public int attachmentFieldIndex;
+	
+	/**
+	 * how many messages are read between two checkpoint saves within the same folder
+	 */
+	public static final int CHECKPOINT_INTERVAL = 1000;
+	
+	public PstCheckpointStore checkpointStore;
+	
+	/**
+	 * checkpoints saved once the rows before them are consumed, null when checkpoints are disabled
+	 */
+	public PstCheckpointQueue checkpoints;
+	public static final long CHECKPOINT_WAIT_MILLIS = 10;
+	
+	/**
+	 * sidecar indexes of the PST files, null when disabled
+	 */
+	public PstIndexStore indexStore;
+	
+	/**
+	 * how many messages a single processRow() call reads when reading serially
+	 */
+	public static final int MESSAGES_PER_CALL = 100;
+	
+	/**
+	 * file being read serially and the input row it came with, null between files
+	 */
+	public PstMessageIterator messages;
+	public Object[] messagesRow;
+	public PstRowSink rowSink;
+	
+	/**
+	 * how many output rows each worker may queue before it has to wait for the step thread
+	 */
+	public static final int QUEUED_ROWS_PER_WORKER = 500;
+	
+	/**
+	 * pages of the PST files shared with the other steps reading them, null when disabled
+	 */
+	public PstPageCache pageCache;
+	
+	/**
+	 * files are read through memory mappings rather than seek/read calls
+	 */
+	public boolean memoryMapped;
+	
+	public int concurrentFiles;
+	public ExecutorService filePool;
+	public ForkJoinPool folderPool;
+	
+	/**
+	 * output rows, and checkpoint snapshots to be saved once the rows queued before them are put and consumed
+	 */
+	public BlockingQueue<Object> outputQueue;
+	public AtomicInteger pendingFiles = new AtomicInteger();
+	public boolean inputDone;
+	
+	/**
+	 * files that cannot be read are logged and skipped rather than failing the step
+	 */
+	public boolean continueOnError;
+	
+	/**
+	 * first read failure of a worker thread, thrown by the step thread
+	 */
+	public AtomicReference<KettleException> workerFailure = new AtomicReference<KettleException>();
+	
     public PstInputStepData()
 	{
 		super();
@@ -46,8 +46,10 @@ import org.pentaho.di.trans.TransMeta;
 import org.pentaho.di.ui.trans.step.BaseStepDialog;
 import org.pentaho.di.trans.step.BaseStepMeta;
 import org.pentaho.di.trans.step.StepDialogInterface;
+import org.pentaho.di.ui.core.widget.ColumnInfo;
 
 import com.eulogix.kettle.lib.EasyStepDialog;
+import com.eulogix.kettle.lib.ui.Grid;
 
 /**
  * This class is part of the demo step plug-in implementation.
@@ -71,6 +73,8 @@ public class PstInputStepDialog extends EasyStepDialog {
 	// the dialog writes the settings to it when confirmed 
 	private PstInputStepMeta meta;
 
+	private Grid outputFieldsGrid;
+	
 	
 	/**
 	 * The constructor should simply invoke super() and save the incoming meta
@@ -86,7 +90,7 @@ public class PstInputStepDialog extends EasyStepDialog {
 		super(parent, (BaseStepMeta) in, transMeta, sname);
 		meta = (PstInputStepMeta) in;
 		PKG = PstInputStepMeta.class;
-		messagesPrefix = "PstInputStep";		
+		messagesPrefix = "EulogixPstInputStep";		
 	}
 
 	/**
@@ -155,10 +159,33 @@ public class PstInputStepDialog extends EasyStepDialog {
 		
 		for (Map.Entry<String, Object> entry : meta.fields.entrySet()) {
 		    switch(entry.getKey()) {
+		    	case "concurrentFiles":
+		    	case "folderWorkers":
+		    	case "dateFrom":
+		    	case "dateTo":
+		    	case "folderInclude":
+		    	case "folderExclude":
+		    	case "messageClassInclude":
+		    	case "checkpointFolder":
+		    	case "memoryBudgetMb":
+		    	case "pageCacheMb":
+		    	case "indexFolder": lastControl = addTextVarField(entry.getKey(), lastControl); break;
+		    	case "attachmentFolder": lastControl = addTextVarField(entry.getKey(), lastControl); break;
+		    	case "continueOnError":
+		    	case "extractAttachments":
+		    	case "memoryMapped": lastControl = addCheckboxField(entry.getKey(), lastControl); break;
 		    	default: lastControl = addStreamFieldSelector(entry.getKey(), lastControl); break;
 		    	//default: lastControl = addTextVarField(entry.getKey(), lastControl); break;
 		    }
 		}
+		
+		// grid of the message fields to output, unticked fields are not read at all
+		lastControl = addLabel(messagesPrefix + ".OutputFields.Label", shell, middle, margin, lastControl);
+		
+		outputFieldsGrid = new Grid();
+		outputFieldsGrid.addColumn("name", new ColumnInfo(BaseMessages.getString(PKG, messagesPrefix + ".OutputFields.Column.name"), ColumnInfo.COLUMN_TYPE_TEXT, false, true));
+		outputFieldsGrid.addColumn("include", new ColumnInfo(BaseMessages.getString(PKG, messagesPrefix + ".OutputFields.Column.include"), ColumnInfo.COLUMN_TYPE_CCOMBO, new String[] { "Y", "N" }, true));
+		outputFieldsGrid.initTableView(transMeta, shell, SWT.BORDER | SWT.FULL_SELECTION | SWT.MULTI, meta.outputFields.size(), globalListener, props);
 				
 		// OK and cancel buttons
 		wOK = new Button(shell, SWT.PUSH);
@@ -166,7 +193,14 @@ public class PstInputStepDialog extends EasyStepDialog {
 		wCancel = new Button(shell, SWT.PUSH);
 		wCancel.setText(BaseMessages.getString(PKG, "System.Button.Cancel")); 
 
-		BaseStepDialog.positionBottomButtons(shell, new Button[] { wOK, wCancel }, margin, lastControl);
+		BaseStepDialog.positionBottomButtons(shell, new Button[] { wOK, wCancel }, margin, null);
+		
+		FormData fdOutputFields = new FormData();
+		fdOutputFields.left = new FormAttachment(0, 0);
+		fdOutputFields.top = new FormAttachment(lastControl, margin);
+		fdOutputFields.right = new FormAttachment(100, 0);
+		fdOutputFields.bottom = new FormAttachment(wOK, -2 * margin);
+		outputFieldsGrid.getTable().setLayoutData(fdOutputFields);
 
 		// Add listeners for cancel and OK
 		lsCancel = new Listener() {
@@ -197,6 +231,7 @@ public class PstInputStepDialog extends EasyStepDialog {
 
 		// populate the dialog with the values from the meta object
 		populateDialog();
+		outputFieldsGrid.setData(meta.outputFields);
 		
 		// restore the changed flag to original value, as the modify listeners fire during dialog population 
 		meta.setChanged(changed);
@@ -213,5 +248,12 @@ public class PstInputStepDialog extends EasyStepDialog {
 		return stepname;
 	}
 	
+	/**
+	 * Called when the user confirms the dialog
+	 */
+	protected void ok() {
+		meta.outputFields = outputFieldsGrid.getData();
+		super.ok();
+	}
 	
 }
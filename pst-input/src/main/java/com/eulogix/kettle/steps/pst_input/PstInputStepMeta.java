@@ -1,15 +1,23 @@
 package com.eulogix.kettle.steps.pst_input;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 
 import org.eclipse.swt.widgets.Shell;
 import org.pentaho.di.core.annotations.Step;
+import org.pentaho.di.core.database.DatabaseMeta;
+import org.pentaho.di.core.exception.KettleException;
 import org.pentaho.di.core.exception.KettleStepException;
+import org.pentaho.di.core.exception.KettleValueException;
+import org.pentaho.di.core.exception.KettleXMLException;
 import org.pentaho.di.core.row.RowMetaInterface;
 import org.pentaho.di.core.row.ValueMeta;
 import org.pentaho.di.core.row.ValueMetaInterface;
 import org.pentaho.di.core.variables.VariableSpace;
+import org.pentaho.di.core.xml.XMLHandler;
+import org.pentaho.di.repository.ObjectId;
 import org.pentaho.di.repository.Repository;
 import org.pentaho.di.trans.Trans;
 import org.pentaho.di.trans.TransMeta;
@@ -19,6 +27,7 @@ import org.pentaho.di.trans.step.StepInterface;
 import org.pentaho.di.trans.step.StepMeta;
 import org.pentaho.di.trans.step.StepMetaInterface;
 import org.pentaho.metastore.api.IMetaStore;
+import org.w3c.dom.Node;
 
 import com.eulogix.kettle.lib.EasyStepMeta;
 
@@ -39,6 +48,11 @@ public class PstInputStepMeta extends EasyStepMeta {
 	 */
 	private static Class<?> PKG = PstInputStepMeta.class; // for i18n purposes
 	
+	/**
+	 * the message fields to output, one line per field with its "name" and an "include" Y/N flag
+	 */
+	public ArrayList<HashMap<String, String>> outputFields;
+	
 	/**
 	 * Constructor should call super() to make sure the base class has a chance to initialize properly.
 	 */
@@ -49,6 +63,70 @@ public class PstInputStepMeta extends EasyStepMeta {
 	public void setUpFields() {
 		fields = new LinkedHashMap<String, Object>();
 		fields.put("fileName", "");
+		fields.put("concurrentFiles", "1");
+		fields.put("continueOnError", "N");
+		fields.put("folderWorkers", "0");
+		fields.put("dateFrom", "");
+		fields.put("dateTo", "");
+		fields.put("folderInclude", "");
+		fields.put("folderExclude", "");
+		fields.put("messageClassInclude", "");
+		fields.put("checkpointFolder", "");
+		fields.put("memoryBudgetMb", "0");
+		fields.put("pageCacheMb", "0");
+		fields.put("memoryMapped", "N");
+		fields.put("indexFolder", "");
+		fields.put("extractAttachments", "N");
+		fields.put("attachmentFolder", "");
+		
+		outputFields = new ArrayList<HashMap<String, String>>();
+		for (PstField field : PstField.values()) {
+			HashMap<String, String> line = new HashMap<String, String>();
+			line.put("name", field.getFieldName());
+			line.put("include", "Y");
+			outputFields.add(line);
+		}
+	}
+	
+	/**
+	 * returns the fields ticked in the output fields grid, in output order
+	 * @return
+	 */
+	public List<PstField> getSelectedFields() {
+		List<PstField> selected = new ArrayList<PstField>();
+		for (PstField field : PstField.values()) {
+			for (HashMap<String, String> line : outputFields) {
+				if (field.getFieldName().equals(line.get("name")) && "Y".equals(line.get("include"))) {
+					selected.add(field);
+					break;
+				}
+			}
+		}
+		return selected;
+	}
+	
+	public String getXML() throws KettleValueException {
+		return super.getXML() + getTableXML("output_fields", outputFields);
+	}
+	
+	public void loadXML(Node stepnode, List<DatabaseMeta> databases, IMetaStore metaStore) throws KettleXMLException {
+		super.loadXML(stepnode, databases, metaStore);
+		// transformations saved before the grid existed keep the default of all fields
+		if (XMLHandler.getSubNode(stepnode, "output_fields") != null) {
+			outputFields = loadXMLTableData(stepnode, "output_fields", databases, metaStore);
+		}
+	}
+	
+	public void saveRep(Repository rep, IMetaStore metaStore, ObjectId id_transformation, ObjectId id_step) throws KettleException {
+		super.saveRep(rep, metaStore, id_transformation, id_step);
+		saveTableToRep(outputFields, "output_fields", rep, metaStore, id_transformation, id_step);
+	}
+	
+	public void readRep(Repository rep, IMetaStore metaStore, ObjectId id_step, List<DatabaseMeta> databases) throws KettleException {
+		super.readRep(rep, metaStore, id_step, databases);
+		if (rep.getStepAttributeInteger(id_step, "output_fields_nr_rows") > 0) {
+			outputFields = readTableFromRep("output_fields", rep, metaStore, id_step, databases);
+		}
 	}
 	
 	/**
@@ -107,6 +185,7 @@ public class PstInputStepMeta extends EasyStepMeta {
 	public Object clone() {
 		PstInputStepMeta retval = (PstInputStepMeta) super.clone();
 		retval.setUpFields();
+		retval.outputFields = deepCloneTableData(outputFields);
 		return retval;
 	}
 	
@@ -129,38 +208,31 @@ public class PstInputStepMeta extends EasyStepMeta {
 		ArrayList<ValueMetaInterface> metas = new ArrayList<ValueMetaInterface>(); 
 
 		// a value meta object contains the meta data for a field
-		metas.add( new ValueMeta("descriptor_node_id", ValueMeta.TYPE_INTEGER) );
-		metas.add( new ValueMeta("folder", ValueMeta.TYPE_STRING) );
-		metas.add( new ValueMeta("date", ValueMeta.TYPE_DATE) );
-		metas.add( new ValueMeta("subject", ValueMeta.TYPE_STRING) );
-		metas.add( new ValueMeta("body", ValueMeta.TYPE_STRING) );
-		metas.add( new ValueMeta("body_html", ValueMeta.TYPE_STRING) );
-		metas.add( new ValueMeta("body_prefix", ValueMeta.TYPE_STRING) );
-		metas.add( new ValueMeta("sender_name", ValueMeta.TYPE_STRING) );
-		metas.add( new ValueMeta("sender_email_address", ValueMeta.TYPE_STRING) );
-		metas.add( new ValueMeta("to", ValueMeta.TYPE_STRING) );
-		metas.add( new ValueMeta("cc", ValueMeta.TYPE_STRING) );
-		metas.add( new ValueMeta("bcc", ValueMeta.TYPE_STRING) );
-		metas.add( new ValueMeta("size", ValueMeta.TYPE_INTEGER) );
-		metas.add( new ValueMeta("number_of_attachments", ValueMeta.TYPE_INTEGER) );
-		metas.add( new ValueMeta("number_of_recipients", ValueMeta.TYPE_INTEGER) );
-		metas.add( new ValueMeta("importance", ValueMeta.TYPE_INTEGER) );
-		metas.add( new ValueMeta("in_reply_to_id", ValueMeta.TYPE_STRING) );
-		metas.add( new ValueMeta("message_class", ValueMeta.TYPE_STRING) );
-		metas.add( new ValueMeta("message_cc_me", ValueMeta.TYPE_BOOLEAN) );
-		metas.add( new ValueMeta("message_to_me", ValueMeta.TYPE_BOOLEAN) );
-		metas.add( new ValueMeta("reply_requested", ValueMeta.TYPE_BOOLEAN) );
-		metas.add( new ValueMeta("forwarded", ValueMeta.TYPE_BOOLEAN) );
-		metas.add( new ValueMeta("read", ValueMeta.TYPE_BOOLEAN) );
-		metas.add( new ValueMeta("replied", ValueMeta.TYPE_BOOLEAN) );
-		metas.add( new ValueMeta("from_me", ValueMeta.TYPE_BOOLEAN) );
+		for (PstField field : getSelectedFields()) {
+			metas.add( new ValueMeta(field.getFieldName(), field.getType()) );
+		}
 		
 		for(int i=0;i<metas.size();i++) {
 			metas.get(i).setTrimType(ValueMeta.TRIM_TYPE_BOTH);
 			metas.get(i).setOrigin(name);
 			inputRowMeta.addValueMeta(metas.get(i));
 		}
+		
+		if (isAttachmentMode()) {
+			for (int i = 0; i < PstAttachmentWriter.FIELD_NAMES.length; i++) {
+				ValueMetaInterface attachmentField = new ValueMeta(PstAttachmentWriter.FIELD_NAMES[i], PstAttachmentWriter.FIELD_TYPES[i]);
+				attachmentField.setOrigin(name);
+				inputRowMeta.addValueMeta(attachmentField);
+			}
+		}
 			
 	}
+	
+	/**
+	 * true when attachments are written to disk, with one output row per attachment rather than per message
+	 */
+	public boolean isAttachmentMode() {
+		return "Y".equals(fields.get("extractAttachments"));
+	}
 
 }
@@ -0,0 +1,172 @@
+package com.eulogix.kettle.steps.pst_input;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import com.pff.PSTMessage;
+
+/**
+ * Filters evaluated while walking a PST file, before any body or recipient is read.
+ *
+ * Folder globs are matched against the folder path, made of the display names
+ * separated by "/" (e.g. "/Top of Personal Folders/Inbox"): "*" matches within a
+ * single folder name, "**" across any number of folders, none included. Message
+ * class globs are matched against getMessageClass() (e.g. "IPM.Note*"). All matches
+ * are case insensitive and each setting accepts a comma separated list of globs.
+ */
+public class PstMessageFilter {
+
+	private static final String[] DATE_FORMATS = { "yyyy-MM-dd HH:mm:ss", "yyyy/MM/dd HH:mm:ss", "yyyy-MM-dd", "yyyy/MM/dd" };
+
+	private Date dateFrom;
+	private Date dateTo;
+	private List<Pattern> folderInclude;
+	private List<Pattern> folderExclude;
+	private List<Pattern> messageClassInclude;
+
+	/**
+	 * @param dateFrom				submit time lower bound (inclusive), empty for none
+	 * @param dateTo				submit time upper bound (exclusive), a date without time includes the whole day
+	 * @param folderInclude			globs of the folders whose messages are read, empty for all
+	 * @param folderExclude			globs of the folders skipped along with their subfolders
+	 * @param messageClassInclude	globs of the message classes to read, empty for all
+	 * @throws ParseException
+	 */
+	public PstMessageFilter(String dateFrom, String dateTo, String folderInclude, String folderExclude, String messageClassInclude) throws ParseException {
+		this.dateFrom = parseDate(dateFrom, false);
+		this.dateTo = parseDate(dateTo, true);
+		this.folderInclude = compileGlobs(folderInclude, true);
+		this.folderExclude = compileGlobs(folderExclude, true);
+		this.messageClassInclude = compileGlobs(messageClassInclude, false);
+	}
+
+	/**
+	 * excluded folders are pruned, their subfolders are not visited at all
+	 * @param folderPath
+	 * @return
+	 */
+	public boolean isFolderExcluded(String folderPath) {
+		return matchesAny(folderExclude, folderPath);
+	}
+
+	/**
+	 * subfolders of a folder that is not included are still visited, as they may be included
+	 * @param folderPath
+	 * @return
+	 */
+	public boolean isFolderIncluded(String folderPath) {
+		return folderInclude.isEmpty() || matchesAny(folderInclude, folderPath);
+	}
+
+	/**
+	 * checks the message class and submit time, which come from the already loaded property table
+	 * @param email
+	 * @return
+	 */
+	public boolean accept(PSTMessage email) {
+		if (!acceptsMessageClass(email.getMessageClass()))
+			return false;
+		return (dateFrom == null && dateTo == null) || acceptsSubmitTime(email.getClientSubmitTime());
+	}
+
+	public boolean acceptsMessageClass(String messageClass) {
+		return messageClassInclude.isEmpty() || matchesAny(messageClassInclude, messageClass);
+	}
+
+	/**
+	 * messages without a submit time (e.g. drafts) cannot be proven to be in the window
+	 * @param submitTime
+	 * @return
+	 */
+	public boolean acceptsSubmitTime(Date submitTime) {
+		if (dateFrom == null && dateTo == null)
+			return true;
+		if (submitTime == null)
+			return false;
+		if (dateFrom != null && submitTime.before(dateFrom))
+			return false;
+		if (dateTo != null && !submitTime.before(dateTo))
+			return false;
+		return true;
+	}
+
+	public static String childPath(String parentPath, String folderName) {
+		return parentPath + "/" + (folderName == null ? "" : folderName);
+	}
+
+	private boolean matchesAny(List<Pattern> patterns, String value) {
+		if (value == null)
+			return false;
+		for (Pattern pattern : patterns) {
+			if (pattern.matcher(value).matches())
+				return true;
+		}
+		return false;
+	}
+
+	private static Date parseDate(String value, boolean upperBound) throws ParseException {
+		if (value == null || value.trim().isEmpty())
+			return null;
+		value = value.trim();
+
+		for (String format : DATE_FORMATS) {
+			SimpleDateFormat dateFormat = new SimpleDateFormat(format);
+			dateFormat.setLenient(false);
+			try {
+				Date date = dateFormat.parse(value);
+				if (upperBound && !format.contains("HH")) {
+					Calendar calendar = Calendar.getInstance();
+					calendar.setTime(date);
+					calendar.add(Calendar.DAY_OF_MONTH, 1);
+					date = calendar.getTime();
+				}
+				return date;
+			} catch (ParseException e) {
+				// try the next format
+			}
+		}
+		throw new ParseException("Unparseable date: " + value + ", expected yyyy-MM-dd [HH:mm:ss]", 0);
+	}
+
+	private static List<Pattern> compileGlobs(String globs, boolean folderPath) {
+		List<Pattern> patterns = new ArrayList<Pattern>();
+		if (globs == null)
+			return patterns;
+
+		for (String glob : globs.split(",")) {
+			glob = glob.trim();
+			if (!glob.isEmpty())
+				patterns.add(Pattern.compile(globToRegex(glob, folderPath), Pattern.CASE_INSENSITIVE));
+		}
+		return patterns;
+	}
+
+	private static String globToRegex(String glob, boolean folderPath) {
+		StringBuilder regex = new StringBuilder();
+		for (int i = 0; i < glob.length(); i++) {
+			char c = glob.charAt(i);
+			if (c == '*' && i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+				// "**/" also matches no folder at all, so "/**/Inbox" matches "/Inbox"
+				if (folderPath && i + 2 < glob.length() && glob.charAt(i + 2) == '/') {
+					regex.append("(?:.*/)?");
+					i += 2;
+				} else {
+					regex.append(".*");
+					i++;
+				}
+			} else if (c == '*') {
+				regex.append(folderPath ? "[^/]*" : ".*");
+			} else if (c == '?') {
+				regex.append(folderPath ? "[^/]" : ".");
+			} else {
+				regex.append(Pattern.quote(String.valueOf(c)));
+			}
+		}
+		return regex.toString();
+	}
+}
@@ -0,0 +1,181 @@
+package com.eulogix.kettle.steps.pst_input;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+import org.pentaho.di.core.exception.KettleStepException;
+
+import com.pff.PSTException;
+import com.pff.PSTFile;
+import com.pff.PSTFolder;
+import com.pff.PSTMessage;
+
+/**
+ * Walks the messages of a PST file one at a time, so that the caller decides how many
+ * it reads before giving control back (e.g. at the end of a processRow() call).
+ *
+ * The folder tree is visited through an explicit stack rather than recursion, in the same
+ * order as before: subfolders first, then the messages of the folder itself. Excluded
+ * folders are pruned and completed folders are skipped according to the checkpoint, whose
+ * position is recorded once the caller asks for the message following the one returned,
+ * and handed to the sink to be saved once the rows emitted before are consumed.
+ */
+public class PstMessageIterator {
+
+	private PstInputStep step;
+	private String pstFileName;
+	private PSTFile pstFile;
+	private PstInputStepData data;
+	private PstCheckpoint checkpoint;
+	private PstRowSink sink;
+
+	/**
+	 * folders whose subfolders are being visited, the top one is the deepest
+	 */
+	private ArrayDeque<Frame> stack = new ArrayDeque<Frame>();
+
+	/**
+	 * folder whose messages are being read, null while walking the tree
+	 */
+	private Frame reading;
+	private int position;
+	private PSTMessage returned;
+
+	private static class Frame {
+		PSTFolder folder;
+		String path;
+		Iterator<PSTFolder> subFolders;
+	}
+
+	public PstMessageIterator(PstInputStep step, String pstFileName, PstInputStepData data, PstCheckpoint checkpoint, PstRowSink sink)
+			throws PSTException, IOException
+	{
+		this.step = step;
+		this.pstFileName = pstFileName;
+		this.data = data;
+		this.checkpoint = checkpoint;
+		this.sink = sink;
+		this.pstFile = step.openPstFile(pstFileName, data);
+		try {
+			push(pstFile.getRootFolder(), "");
+		} catch (PSTException e) {
+			close();
+			throw e;
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * returns the next message accepted by the filter, or null once the file is over or the step is stopped
+	 * @return
+	 * @throws PSTException
+	 * @throws IOException
+	 * @throws KettleStepException
+	 */
+	public PSTMessage next() throws PSTException, IOException, KettleStepException {
+		if (returned != null) {
+			// the previous message has been handed over, it can be recorded
+			recordRead(returned);
+			returned = null;
+		}
+
+		while (!step.isStopped()) {
+			if (reading != null) {
+				PSTMessage email = (PSTMessage) reading.folder.getNextChild();
+				if (email == null) {
+					completeFolder();
+				} else if (data.filter.accept(email)) {
+					returned = email;
+					return email;
+				} else {
+					recordRead(email);
+				}
+				continue;
+			}
+
+			Frame frame = stack.peek();
+			if (frame == null)
+				return null;
+
+			if (frame.subFolders != null && frame.subFolders.hasNext()) {
+				PSTFolder childFolder = frame.subFolders.next();
+				String childPath = PstMessageFilter.childPath(frame.path, childFolder.getDisplayName());
+				if (!data.filter.isFolderExcluded(childPath))
+					push(childFolder, childPath);
+				continue;
+			}
+
+			// all the subfolders are done, now the messages of the folder itself
+			stack.pop();
+			startFolder(frame);
+		}
+		return null;
+	}
+
+	/**
+	 * the folder of the last message returned
+	 * @return
+	 */
+	public PSTFolder getFolder() {
+		return reading == null ? null : reading.folder;
+	}
+
+	public String getFolderPath() {
+		return reading == null ? "" : reading.path;
+	}
+
+	public String getFileName() {
+		return pstFileName;
+	}
+
+	public PstCheckpoint getCheckpoint() {
+		return checkpoint;
+	}
+
+	public PstRowSink getSink() {
+		return sink;
+	}
+
+	public void close() throws IOException {
+		pstFile.close();
+	}
+
+	private void push(PSTFolder folder, String folderPath) throws PSTException, IOException {
+		Frame frame = new Frame();
+		frame.folder = folder;
+		frame.path = folderPath;
+		if (folder.hasSubfolders())
+			frame.subFolders = folder.getSubFolders().iterator();
+		stack.push(frame);
+	}
+
+	private void startFolder(Frame frame) throws PSTException, IOException {
+		if (checkpoint != null && checkpoint.isFolderCompleted(frame.folder.getDescriptorNodeId()))
+			return;
+
+		// messages are filtered before any body or recipient is read
+		if (frame.folder.getContentCount() > 0 && data.filter.isFolderIncluded(frame.path)) {
+			position = step.resumeFolder(frame.folder, checkpoint);
+			reading = frame;
+		}
+	}
+
+	private void recordRead(PSTMessage email) throws KettleStepException {
+		if (checkpoint == null)
+			return;
+		checkpoint.childRead(reading.folder.getDescriptorNodeId(), ++position, email.getDescriptorNodeId());
+		if (position % PstInputStepData.CHECKPOINT_INTERVAL == 0)
+			sink.checkpoint(checkpoint);
+	}
+
+	private void completeFolder() throws KettleStepException {
+		if (checkpoint != null && !step.isStopped()) {
+			checkpoint.folderCompleted(reading.folder.getDescriptorNodeId());
+			sink.checkpoint(checkpoint);
+		}
+		reading = null;
+	}
+}
@@ -0,0 +1,138 @@
+package com.eulogix.kettle.steps.pst_input;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LRU cache of fixed size pages of PST files, shared by all the step copies and worker
+ * threads of the JVM: the node and block B-tree pages of a file are read again and again
+ * by every PSTFile opened on it, each of which would otherwise start cold.
+ *
+ * Pages are keyed by file path, size and modification time, so that a file changed on
+ * disk never gets stale pages. The cache is reference counted: it is created by the first
+ * step that acquires it and emptied when the last one releases it.
+ */
+public class PstPageCache {
+
+	public static final int PAGE_SIZE = 8192;
+
+	private static PstPageCache shared;
+	private static int references;
+
+	private LinkedHashMap<PageKey, byte[]> pages;
+	private int maxPages;
+
+	private AtomicLong hits = new AtomicLong();
+	private AtomicLong misses = new AtomicLong();
+
+	private static class PageKey {
+		String fileKey;
+		long pageIndex;
+
+		PageKey(String fileKey, long pageIndex) {
+			this.fileKey = fileKey;
+			this.pageIndex = pageIndex;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof PageKey))
+				return false;
+			PageKey other = (PageKey) o;
+			return pageIndex == other.pageIndex && fileKey.equals(other.fileKey);
+		}
+
+		public int hashCode() {
+			return fileKey.hashCode() * 31 + (int) (pageIndex ^ (pageIndex >>> 32));
+		}
+	}
+
+	private PstPageCache(long capacityBytes) {
+		maxPages = pagesFor(capacityBytes);
+		pages = new LinkedHashMap<PageKey, byte[]>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			protected boolean removeEldestEntry(Map.Entry<PageKey, byte[]> eldest) {
+				return size() > maxPages;
+			}
+		};
+	}
+
+	/**
+	 * returns the shared cache, growing it if a larger capacity is asked than the current one
+	 * @param capacityBytes
+	 * @return
+	 */
+	public static synchronized PstPageCache acquire(long capacityBytes) {
+		if (shared == null) {
+			shared = new PstPageCache(capacityBytes);
+		} else {
+			shared.grow(capacityBytes);
+		}
+		references++;
+		return shared;
+	}
+
+	/**
+	 * releases the shared cache, its pages are dropped when no step uses it anymore
+	 */
+	public static synchronized void release(PstPageCache cache) {
+		if (cache != shared)
+			return;
+		if (--references == 0)
+			shared = null;
+	}
+
+	/**
+	 * identifies the current content of a file
+	 * @param file
+	 * @return
+	 */
+	public static String fileKey(File file) {
+		return file.getAbsolutePath() + "|" + file.length() + "|" + file.lastModified();
+	}
+
+	/**
+	 * returns a cached page, or null if it has to be read from the file
+	 * @param fileKey
+	 * @param pageIndex
+	 * @return
+	 */
+	public byte[] getPage(String fileKey, long pageIndex) {
+		byte[] page;
+		synchronized (this) {
+			page = pages.get(new PageKey(fileKey, pageIndex));
+		}
+		if (page == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+		}
+		return page;
+	}
+
+	public synchronized void putPage(String fileKey, long pageIndex, byte[] page) {
+		pages.put(new PageKey(fileKey, pageIndex), page);
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public synchronized long getCachedBytes() {
+		return (long) pages.size() * PAGE_SIZE;
+	}
+
+	private synchronized void grow(long capacityBytes) {
+		maxPages = Math.max(maxPages, pagesFor(capacityBytes));
+	}
+
+	private static int pagesFor(long capacityBytes) {
+		return (int) Math.max(1, Math.min(Integer.MAX_VALUE, capacityBytes / PAGE_SIZE));
+	}
+}
@@ -0,0 +1,21 @@
+package com.eulogix.kettle.steps.pst_input;
+
+import org.pentaho.di.core.exception.KettleStepException;
+
+/**
+ * Receives the output rows produced while walking a PST file.
+ * When reading serially rows go straight to putRow(), when reading with worker
+ * threads they are queued and handed over to putRow() by the step thread.
+ */
+public interface PstRowSink {
+
+	public void emit(Object[] outputRow) throws KettleStepException;
+
+	/**
+	 * takes a snapshot of the checkpoint, saved once the rows emitted before it are consumed
+	 * @param checkpoint
+	 * @throws KettleStepException
+	 */
+	public void checkpoint(PstCheckpoint checkpoint) throws KettleStepException;
+
+}
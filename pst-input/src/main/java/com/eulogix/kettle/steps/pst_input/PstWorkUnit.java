@@ -0,0 +1,25 @@
+package com.eulogix.kettle.steps.pst_input;
+
+/**
+ * A range of messages of a single PST folder, identified by the folder descriptor id
+ * so that it can be loaded from any PSTFile handle opened on the same file.
+ */
+public class PstWorkUnit implements Comparable<PstWorkUnit> {
+
+	public final long folderId;
+	public final int start;
+	public final int count;
+
+	public PstWorkUnit(long folderId, int start, int count) {
+		this.folderId = folderId;
+		this.start = start;
+		this.count = count;
+	}
+
+	/**
+	 * bigger units first, so that they get scheduled before the small ones
+	 */
+	public int compareTo(PstWorkUnit other) {
+		return other.count < count ? -1 : (other.count == count ? 0 : 1);
+	}
+}
@@ -0,0 +1,92 @@
+package com.eulogix.kettle.steps.pst_input;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PstAttachmentWriterTest {
+
+	private File folder;
+	private File messageFolder;
+	private PstAttachmentWriter writer;
+
+	@Before
+	public void setUp() throws IOException {
+		folder = Files.createTempDirectory("pst-attachments").toFile();
+		messageFolder = new File(folder, "42");
+		messageFolder.mkdirs();
+		writer = new PstAttachmentWriter(folder);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(folder);
+	}
+
+	private File temp(String content) throws IOException {
+		File temp = new File(messageFolder, ".part");
+		Files.write(temp.toPath(), content.getBytes(StandardCharsets.UTF_8));
+		return temp;
+	}
+
+	private String move(String content, String name, Set<String> names) throws IOException {
+		File temp = temp(content);
+		File target = writer.moveToTarget(temp, messageFolder, name, names);
+		assertFalse(temp.exists());
+		assertEquals(messageFolder, target.getParentFile());
+		assertArrayEquals(content.getBytes(StandardCharsets.UTF_8), Files.readAllBytes(target.toPath()));
+		return target.getName();
+	}
+
+	@Test
+	public void namesOfAMessageNeverCollide() throws IOException {
+		Set<String> names = new HashSet<String>();
+		assertEquals("report.pdf", move("a", "report.pdf", names));
+		// the same name, or one differing in case, even with the same content
+		assertEquals("Report_1.pdf", move("a", "Report.pdf", names));
+		assertEquals("report_2.pdf", move("b", "report.pdf", names));
+		// a numbered name taken by a real attachment is skipped
+		assertEquals("notes_1", move("c", "notes_1", names));
+		assertEquals("notes", move("d", "notes", names));
+		assertEquals("notes_2", move("e", "notes", names));
+	}
+
+	@Test
+	public void existingFilesAreNeverReplaced() throws IOException {
+		Files.write(new File(messageFolder, "report.pdf").toPath(), "other".getBytes(StandardCharsets.UTF_8));
+		assertEquals("report_1.pdf", move("mine", "report.pdf", new HashSet<String>()));
+		assertArrayEquals("other".getBytes(StandardCharsets.UTF_8), Files.readAllBytes(new File(messageFolder, "report.pdf").toPath()));
+	}
+
+	@Test
+	public void readingAMessageAgainFindsItsFiles() throws IOException {
+		Set<String> names = new HashSet<String>();
+		move("first", "a.txt", names);
+		move("second", "a.txt", names);
+
+		names = new HashSet<String>();
+		assertEquals("a.txt", move("first", "a.txt", names));
+		assertEquals("a_1.txt", move("second", "a.txt", names));
+		assertEquals(2, messageFolder.list().length);
+	}
+
+	@Test
+	public void numberedNamesKeepTheExtension() {
+		assertEquals("report_3.pdf", PstAttachmentWriter.numberedName("report.pdf", 3));
+		assertEquals("archive.tar_1.gz", PstAttachmentWriter.numberedName("archive.tar.gz", 1));
+		assertEquals("README_1", PstAttachmentWriter.numberedName("README", 1));
+		assertEquals(".profile_1", PstAttachmentWriter.numberedName(".profile", 1));
+	}
+}
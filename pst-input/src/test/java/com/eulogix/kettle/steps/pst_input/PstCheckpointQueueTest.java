@@ -0,0 +1,118 @@
+package com.eulogix.kettle.steps.pst_input;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PstCheckpointQueueTest {
+
+	private static final String SETTINGS = PstCheckpointStore.fingerprint("2020-01-01", "", "/**/Inbox", "", "", "N", "SUBJECT");
+
+	private File folder;
+	private File pstFile;
+	private PstCheckpointStore store;
+
+	@Before
+	public void setUp() throws IOException {
+		folder = Files.createTempDirectory("pst-checkpoints").toFile();
+		pstFile = new File(folder, "mailbox.pst");
+		Files.write(pstFile.toPath(), new byte[] { 1, 2, 3 });
+		store = new PstCheckpointStore(new File(folder, "checkpoints"), SETTINGS);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(folder);
+	}
+
+	@Test
+	public void snapshotsAreSavedOnlyOnceTheirRowsAreConsumed() throws IOException {
+		PstCheckpointQueue queue = new PstCheckpointQueue(store);
+		PstCheckpoint checkpoint = store.load(pstFile);
+
+		for (int i = 0; i < 10; i++)
+			queue.rowPut();
+		checkpoint.childRead(7, 10, 1234);
+		queue.add(checkpoint.snapshot());
+
+		// the last row put is still in a row set: a crash now must not skip it
+		queue.saveConsumed(1);
+		assertFalse(queue.isEmpty());
+		assertEquals(0, store.load(pstFile).getResumePosition(7));
+
+		queue.saveConsumed(0);
+		assertTrue(queue.isEmpty());
+		assertEquals(10, store.load(pstFile).getResumePosition(7));
+	}
+
+	@Test
+	public void snapshotsAreSavedInOrder() throws IOException {
+		PstCheckpointQueue queue = new PstCheckpointQueue(store);
+		PstCheckpoint checkpoint = store.load(pstFile);
+
+		queue.rowPut();
+		checkpoint.childRead(7, 1, 100);
+		queue.add(checkpoint.snapshot());
+		queue.rowPut();
+		checkpoint.folderCompleted(7);
+		queue.add(checkpoint.snapshot());
+		queue.rowPut();
+
+		// only the first row has been read, the second snapshot has to wait
+		queue.saveConsumed(2);
+		PstCheckpoint saved = store.load(pstFile);
+		assertEquals(1, saved.getResumePosition(7));
+		assertFalse(saved.isFolderCompleted(7));
+
+		queue.saveConsumed(1);
+		assertTrue(queue.isEmpty());
+		assertTrue(store.load(pstFile).isFolderCompleted(7));
+	}
+
+	@Test
+	public void snapshotsAreNotChangedByLaterReads() {
+		PstCheckpoint checkpoint = new PstCheckpoint(pstFile, SETTINGS);
+		checkpoint.childRead(7, 5, 100);
+		PstCheckpoint snapshot = checkpoint.snapshot();
+		checkpoint.childRead(7, 6, 101);
+		checkpoint.folderCompleted(8);
+
+		assertEquals(5, snapshot.getResumePosition(7));
+		assertFalse(snapshot.isFolderCompleted(8));
+	}
+
+	@Test
+	public void checkpointsOfOtherSettingsAreDiscarded() throws IOException {
+		PstCheckpoint checkpoint = store.load(pstFile);
+		checkpoint.complete = true;
+		store.save(checkpoint);
+		assertTrue(store.load(pstFile).complete);
+
+		PstCheckpointStore otherFields = new PstCheckpointStore(new File(folder, "checkpoints"),
+				PstCheckpointStore.fingerprint("2020-01-01", "", "/**/Inbox", "", "", "N", "SUBJECT", "BODY"));
+		assertFalse(otherFields.load(pstFile).complete);
+
+		PstCheckpointStore otherFilter = new PstCheckpointStore(new File(folder, "checkpoints"),
+				PstCheckpointStore.fingerprint("2019-01-01", "", "/**/Inbox", "", "", "N", "SUBJECT"));
+		assertFalse(otherFilter.load(pstFile).complete);
+	}
+
+	@Test
+	public void checkpointsOfChangedFilesAreDiscarded() throws IOException {
+		PstCheckpoint checkpoint = store.load(pstFile);
+		checkpoint.complete = true;
+		store.save(checkpoint);
+
+		Files.write(pstFile.toPath(), new byte[] { 1, 2, 3, 4 });
+		assertFalse(store.load(pstFile).complete);
+	}
+}
@@ -0,0 +1,131 @@
+package com.eulogix.kettle.steps.pst_input;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.pff.PSTRAFileContent;
+
+public class PstIndexStoreTest {
+
+	private File folder;
+	private File pstFile;
+	private PstIndexStore store;
+
+	@Before
+	public void setUp() throws IOException {
+		folder = Files.createTempDirectory("pst-index").toFile();
+		pstFile = new File(folder, "mailbox.pst");
+		// large enough for the pages of the index
+		Files.write(pstFile.toPath(), new byte[8 * PstPageCache.PAGE_SIZE]);
+		store = new PstIndexStore(new File(folder, "index"));
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(folder);
+	}
+
+	private static Map<Long, byte[]> pages() {
+		Map<Long, byte[]> pages = new HashMap<Long, byte[]>();
+		pages.put(0L, new byte[] { 1, 2, 3 });
+		pages.put(7L, new byte[] { 4 });
+		return pages;
+	}
+
+	@Test
+	public void pagesAreSharedWhileHeld() throws IOException {
+		assertNull(store.load(pstFile));
+		Map<Long, byte[]> saved = store.save(pstFile, pages());
+		Map<Long, byte[]> loaded = store.load(pstFile);
+		assertSame(saved, loaded);
+
+		store.release(saved);
+		// still held by the second handle
+		assertSame(loaded, store.load(pstFile));
+		store.release(loaded);
+		store.release(loaded);
+	}
+
+	@Test
+	public void pagesAreDroppedWhenTheLastHandleReleasesThem() throws IOException {
+		Map<Long, byte[]> saved = store.save(pstFile, pages());
+		store.release(saved);
+
+		// read back from the index file
+		Map<Long, byte[]> loaded = store.load(pstFile);
+		assertNotSame(saved, loaded);
+		assertArrayEquals(new byte[] { 1, 2, 3 }, loaded.get(0L));
+		assertArrayEquals(new byte[] { 4 }, loaded.get(7L));
+		store.release(loaded);
+	}
+
+	@Test
+	public void indexesOfChangedFilesAreIgnored() throws IOException {
+		store.release(store.save(pstFile, pages()));
+		Files.write(pstFile.toPath(), new byte[9 * PstPageCache.PAGE_SIZE]);
+		assertNull(store.load(pstFile));
+	}
+
+	@Test
+	public void indexedContentReleasesItsPagesWhenClosed() throws IOException {
+		Map<Long, byte[]> saved = store.save(pstFile, pages());
+		IndexedPstFileContent content = new IndexedPstFileContent(new PSTRAFileContent(pstFile), saved, store);
+		content.close();
+		assertNotSame(saved, store.load(pstFile));
+	}
+
+	private File indexFile() {
+		File[] files = new File(folder, "index").listFiles();
+		assertEquals(1, files.length);
+		return files[0];
+	}
+
+	@Test
+	public void damagedIndexesAreIgnored() throws IOException {
+		store.release(store.save(pstFile, pages()));
+		byte[] saved = Files.readAllBytes(indexFile().toPath());
+
+		// truncated in the middle of a page
+		Files.write(indexFile().toPath(), Arrays.copyOf(saved, saved.length - 2));
+		assertNull(store.load(pstFile));
+
+		// a page length past the page size, which would otherwise be allocated
+		byte[] oversized = saved.clone();
+		int length = saved.length - 1 - 4;
+		ByteBuffer.wrap(oversized).putInt(length, Integer.MAX_VALUE);
+		Files.write(indexFile().toPath(), oversized);
+		assertNull(store.load(pstFile));
+
+		// a page count the file cannot have
+		byte[] counted = saved.clone();
+		ByteBuffer.wrap(counted).putInt(saved.length - (8 + 4 + 3) - (8 + 4 + 1) - 4, 1000);
+		Files.write(indexFile().toPath(), counted);
+		assertNull(store.load(pstFile));
+
+		// not an index at all
+		Files.write(indexFile().toPath(), new byte[] { 0, 0, 0, 1, (byte) 0xff, (byte) 0xff, 1, 2 });
+		assertNull(store.load(pstFile));
+
+		// still read back when intact
+		Files.write(indexFile().toPath(), saved);
+		Map<Long, byte[]> loaded = store.load(pstFile);
+		assertArrayEquals(new byte[] { 4 }, loaded.get(7L));
+		store.release(loaded);
+	}
+}
@@ -0,0 +1,143 @@
+package com.eulogix.kettle.steps.pst_input;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import org.junit.Test;
+
+public class PstMessageFilterTest {
+
+	private static PstMessageFilter folders(String include, String exclude) throws ParseException {
+		return new PstMessageFilter("", "", include, exclude, "");
+	}
+
+	private static Date time(String value) throws ParseException {
+		return new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").parse(value);
+	}
+
+	@Test
+	public void emptySettingsAcceptEverything() throws ParseException {
+		PstMessageFilter filter = new PstMessageFilter("", "", "", "", "");
+		assertTrue(filter.isFolderIncluded("/Top of Personal Folders/Inbox"));
+		assertFalse(filter.isFolderExcluded("/Top of Personal Folders/Inbox"));
+		assertTrue(filter.acceptsMessageClass("IPM.Note"));
+		assertTrue(filter.acceptsSubmitTime(null));
+	}
+
+	@Test
+	public void singleStarStaysWithinAFolderName() throws ParseException {
+		PstMessageFilter filter = folders("/Top/*", "");
+		assertTrue(filter.isFolderIncluded("/Top/Inbox"));
+		assertTrue(filter.isFolderIncluded("/Top/"));
+		assertFalse(filter.isFolderIncluded("/Top/Inbox/Archive"));
+		assertFalse(filter.isFolderIncluded("/Top"));
+	}
+
+	@Test
+	public void doubleStarCrossesFolders() throws ParseException {
+		PstMessageFilter filter = folders("/**/Inbox", "");
+		assertTrue(filter.isFolderIncluded("/Top of Personal Folders/Inbox"));
+		assertTrue(filter.isFolderIncluded("/a/b/c/Inbox"));
+		assertFalse(filter.isFolderIncluded("/Top/Inbox/Archive"));
+		assertFalse(filter.isFolderIncluded("/Top/MyInbox"));
+	}
+
+	@Test
+	public void doubleStarSlashAlsoMatchesNoFolder() throws ParseException {
+		PstMessageFilter filter = folders("/**/Inbox", "");
+		assertTrue(filter.isFolderIncluded("/Inbox"));
+	}
+
+	@Test
+	public void trailingDoubleStarMatchesTheWholeSubtree() throws ParseException {
+		PstMessageFilter filter = folders("", "/Top/Deleted Items/**");
+		assertTrue(filter.isFolderExcluded("/Top/Deleted Items/"));
+		assertTrue(filter.isFolderExcluded("/Top/Deleted Items/a/b"));
+		assertFalse(filter.isFolderExcluded("/Top/Deleted Items"));
+		assertFalse(filter.isFolderExcluded("/Top/Inbox"));
+	}
+
+	@Test
+	public void questionMarkMatchesOneCharacterButNotASeparator() throws ParseException {
+		PstMessageFilter filter = folders("/Top/Inbox?", "");
+		assertTrue(filter.isFolderIncluded("/Top/Inbox2"));
+		assertFalse(filter.isFolderIncluded("/Top/Inbox"));
+		assertFalse(filter.isFolderIncluded("/Top/Inbox/"));
+		assertFalse(filter.isFolderIncluded("/Top/Inbox22"));
+	}
+
+	@Test
+	public void matchingIgnoresCase() throws ParseException {
+		PstMessageFilter filter = new PstMessageFilter("", "", "/**/inbox", "", "ipm.note*");
+		assertTrue(filter.isFolderIncluded("/TOP/INBOX"));
+		assertTrue(filter.acceptsMessageClass("IPM.Note.SMIME"));
+	}
+
+	@Test
+	public void regexCharactersAreLiteral() throws ParseException {
+		PstMessageFilter filter = folders("/Top (2019)/[Old].+", "");
+		assertTrue(filter.isFolderIncluded("/Top (2019)/[Old].+"));
+		assertFalse(filter.isFolderIncluded("/Top 2019/O.+"));
+	}
+
+	@Test
+	public void globListsAreCommaSeparatedAndTrimmed() throws ParseException {
+		PstMessageFilter filter = folders(" /**/Inbox , /**/Sent Items ,, ", "");
+		assertTrue(filter.isFolderIncluded("/Top/Inbox"));
+		assertTrue(filter.isFolderIncluded("/Top/Sent Items"));
+		assertFalse(filter.isFolderIncluded("/Top/Drafts"));
+	}
+
+	@Test
+	public void messageClassStarCrossesDots() throws ParseException {
+		PstMessageFilter filter = new PstMessageFilter("", "", "", "", "IPM.Note*, IPM.Schedule.*");
+		assertTrue(filter.acceptsMessageClass("IPM.Note"));
+		assertTrue(filter.acceptsMessageClass("IPM.Note.Rules.OofTemplate"));
+		assertTrue(filter.acceptsMessageClass("IPM.Schedule.Meeting.Request"));
+		assertFalse(filter.acceptsMessageClass("IPM.Appointment"));
+		assertFalse(filter.acceptsMessageClass(null));
+	}
+
+	@Test
+	public void dateWindowIsInclusiveAtStartAndExclusiveAtEnd() throws ParseException {
+		PstMessageFilter filter = new PstMessageFilter("2020-01-01 08:00:00", "2020-01-01 18:00:00", "", "", "");
+		assertTrue(filter.acceptsSubmitTime(time("2020-01-01 08:00:00")));
+		assertTrue(filter.acceptsSubmitTime(time("2020-01-01 17:59:59")));
+		assertFalse(filter.acceptsSubmitTime(time("2020-01-01 18:00:00")));
+		assertFalse(filter.acceptsSubmitTime(time("2020-01-01 07:59:59")));
+	}
+
+	@Test
+	public void dateOnlyUpperBoundIncludesTheWholeDay() throws ParseException {
+		PstMessageFilter filter = new PstMessageFilter("2020/01/01", "2020-01-31", "", "", "");
+		assertTrue(filter.acceptsSubmitTime(time("2020-01-01 00:00:00")));
+		assertTrue(filter.acceptsSubmitTime(time("2020-01-31 23:59:59")));
+		assertFalse(filter.acceptsSubmitTime(time("2020-02-01 00:00:00")));
+		assertFalse(filter.acceptsSubmitTime(time("2019-12-31 23:59:59")));
+	}
+
+	@Test
+	public void openEndedWindows() throws ParseException {
+		assertTrue(new PstMessageFilter("2020-01-01", "", "", "", "").acceptsSubmitTime(time("2999-01-01 00:00:00")));
+		assertTrue(new PstMessageFilter("", "2020-01-01", "", "", "").acceptsSubmitTime(time("1999-01-01 00:00:00")));
+	}
+
+	@Test
+	public void messagesWithoutSubmitTimeAreRejectedByAWindow() throws ParseException {
+		assertFalse(new PstMessageFilter("2020-01-01", "", "", "", "").acceptsSubmitTime(null));
+	}
+
+	@Test(expected = ParseException.class)
+	public void invalidDatesAreRejected() throws ParseException {
+		new PstMessageFilter("2020-02-30", "", "", "", "");
+	}
+
+	@Test(expected = ParseException.class)
+	public void unknownDateFormatsAreRejected() throws ParseException {
+		new PstMessageFilter("01/02/2020", "", "", "", "");
+	}
+}
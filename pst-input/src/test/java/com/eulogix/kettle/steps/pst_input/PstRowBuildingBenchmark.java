@@ -0,0 +1,264 @@
+package com.eulogix.kettle.steps.pst_input;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.pentaho.di.core.row.RowDataUtil;
+
+/**
+ * Throughput of the output row construction, the way the step used to build rows
+ * (25 chained RowDataUtil.addValueData() calls) against the way it does now (a single
+ * allocation filled through the precomputed field positions).
+ *
+ * PSTMessage cannot be built outside of a PST file, so the properties are read from
+ * a plain object with the same types libpst returns: the numbers are boxed on every
+ * read, as they are by PstField. This leaves out the main saving of the step, which
+ * no longer reads the fields that are not selected, and only measures the row itself.
+ * Run it with the gc profiler to compare allocations:
+ *
+ * mvn test-compile
+ * java -cp target/test-classes:target/classes:(test classpath) org.openjdk.jmh.Main PstRowBuildingBenchmark -prof gc
+ *
+ * or from the IDE through main().
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PstRowBuildingBenchmark {
+
+	private static final int ATTACHMENTS = 3;
+
+	private static class Message {
+		long descriptorNodeId = 2097252;
+		String folder = "Inbox";
+		Date clientSubmitTime = new Date();
+		String subject = "Quarterly report";
+		String body = "Please find the report attached.";
+		String bodyHtml = "<p>Please find the report attached.</p>";
+		String bodyPrefix = "Please find the report";
+		String senderName = "John Doe";
+		String senderEmailAddress = "john.doe@example.com";
+		String displayTo = "Jane Doe";
+		String displayCc = "";
+		String displayBcc = "";
+		int messageSize = 48213;
+		int numberOfAttachments = ATTACHMENTS;
+		int numberOfRecipients = 1;
+		int importance = 1;
+		String inReplyToId = "";
+		String messageClass = "IPM.Note";
+		boolean messageCcMe = false;
+		boolean messageToMe = true;
+		boolean replyRequested = false;
+		boolean forwarded = false;
+		boolean read = true;
+		boolean replied = false;
+		boolean fromMe = false;
+	}
+
+	/**
+	 * the fields with a read() method per constant, as PstField was at first
+	 */
+	private static abstract class FieldMethod {
+		abstract Object read(Message email);
+	}
+
+	private static final FieldMethod[] FIELD_METHODS = {
+		new FieldMethod() { Object read(Message email) { return Long.valueOf(email.descriptorNodeId); } },
+		new FieldMethod() { Object read(Message email) { return email.folder; } },
+		new FieldMethod() { Object read(Message email) { return email.clientSubmitTime; } },
+		new FieldMethod() { Object read(Message email) { return email.subject; } },
+		new FieldMethod() { Object read(Message email) { return email.body; } },
+		new FieldMethod() { Object read(Message email) { return email.bodyHtml; } },
+		new FieldMethod() { Object read(Message email) { return email.bodyPrefix; } },
+		new FieldMethod() { Object read(Message email) { return email.senderName; } },
+		new FieldMethod() { Object read(Message email) { return email.senderEmailAddress; } },
+		new FieldMethod() { Object read(Message email) { return email.displayTo; } },
+		new FieldMethod() { Object read(Message email) { return email.displayCc; } },
+		new FieldMethod() { Object read(Message email) { return email.displayBcc; } },
+		new FieldMethod() { Object read(Message email) { return Long.valueOf(email.messageSize); } },
+		new FieldMethod() { Object read(Message email) { return Long.valueOf(email.numberOfAttachments); } },
+		new FieldMethod() { Object read(Message email) { return Long.valueOf(email.numberOfRecipients); } },
+		new FieldMethod() { Object read(Message email) { return Long.valueOf(email.importance); } },
+		new FieldMethod() { Object read(Message email) { return email.inReplyToId; } },
+		new FieldMethod() { Object read(Message email) { return email.messageClass; } },
+		new FieldMethod() { Object read(Message email) { return email.messageCcMe; } },
+		new FieldMethod() { Object read(Message email) { return email.messageToMe; } },
+		new FieldMethod() { Object read(Message email) { return email.replyRequested; } },
+		new FieldMethod() { Object read(Message email) { return email.forwarded; } },
+		new FieldMethod() { Object read(Message email) { return email.read; } },
+		new FieldMethod() { Object read(Message email) { return email.replied; } },
+		new FieldMethod() { Object read(Message email) { return email.fromMe; } },
+	};
+
+	private Message email;
+	private Object[] inputRow;
+	private int inputRowSize;
+	private int outputRowSize;
+	private int[] fieldPositions;
+	private int attachmentFieldIndex;
+	private Object[][] attachments;
+
+	@Setup
+	public void setUp() {
+		email = new Message();
+		inputRowSize = 1;
+		inputRow = RowDataUtil.allocateRowData(inputRowSize);
+		inputRow[0] = "/data/mailbox.pst";
+
+		fieldPositions = new int[FIELD_METHODS.length];
+		for (int i = 0; i < FIELD_METHODS.length; i++)
+			fieldPositions[i] = inputRowSize + i;
+		attachmentFieldIndex = inputRowSize + FIELD_METHODS.length;
+
+		attachments = new Object[ATTACHMENTS][];
+		for (int i = 0; i < ATTACHMENTS; i++)
+			attachments[i] = new Object[] { "report" + i + ".pdf", "application/pdf", Long.valueOf(150000 + i), "/out/" + i };
+		outputRowSize = attachmentFieldIndex + attachments[0].length;
+	}
+
+	/**
+	 * the row construction of the original step
+	 */
+	@Benchmark
+	public Object[] chainedAddValueData() {
+		int size = attachmentFieldIndex;
+		Object[] outputRow;
+		outputRow = RowDataUtil.addValueData(inputRow, size - 1, email.fromMe);
+		outputRow = RowDataUtil.addValueData(outputRow, size - 2, email.replied);
+		outputRow = RowDataUtil.addValueData(outputRow, size - 3, email.read);
+		outputRow = RowDataUtil.addValueData(outputRow, size - 4, email.forwarded);
+		outputRow = RowDataUtil.addValueData(outputRow, size - 5, email.replyRequested);
+		outputRow = RowDataUtil.addValueData(outputRow, size - 6, email.messageToMe);
+		outputRow = RowDataUtil.addValueData(outputRow, size - 7, email.messageCcMe);
+		outputRow = RowDataUtil.addValueData(outputRow, size - 8, email.messageClass);
+		outputRow = RowDataUtil.addValueData(outputRow, size - 9, email.inReplyToId);
+		outputRow = RowDataUtil.addValueData(outputRow, size - 10, Long.valueOf(email.importance));
+		outputRow = RowDataUtil.addValueData(outputRow, size - 11, Long.valueOf(email.numberOfRecipients));
+		outputRow = RowDataUtil.addValueData(outputRow, size - 12, Long.valueOf(email.numberOfAttachments));
+		outputRow = RowDataUtil.addValueData(outputRow, size - 13, Long.valueOf(email.messageSize));
+		outputRow = RowDataUtil.addValueData(outputRow, size - 14, email.displayBcc);
+		outputRow = RowDataUtil.addValueData(outputRow, size - 15, email.displayCc);
+		outputRow = RowDataUtil.addValueData(outputRow, size - 16, email.displayTo);
+		outputRow = RowDataUtil.addValueData(outputRow, size - 17, email.senderEmailAddress);
+		outputRow = RowDataUtil.addValueData(outputRow, size - 18, email.senderName);
+		outputRow = RowDataUtil.addValueData(outputRow, size - 19, email.bodyPrefix);
+		outputRow = RowDataUtil.addValueData(outputRow, size - 20, email.bodyHtml);
+		outputRow = RowDataUtil.addValueData(outputRow, size - 21, email.body);
+		outputRow = RowDataUtil.addValueData(outputRow, size - 22, email.subject);
+		outputRow = RowDataUtil.addValueData(outputRow, size - 23, email.clientSubmitTime);
+		outputRow = RowDataUtil.addValueData(outputRow, size - 24, email.folder);
+		outputRow = RowDataUtil.addValueData(outputRow, size - 25, email.descriptorNodeId);
+		return outputRow;
+	}
+
+	/**
+	 * the first single allocation version, calling a different read() method for each field
+	 */
+	@Benchmark
+	public Object[] singleAllocationPerFieldMethod() {
+		Object[] outputRow = RowDataUtil.allocateRowData(attachmentFieldIndex);
+		System.arraycopy(inputRow, 0, outputRow, 0, inputRowSize);
+		for (int i = 0; i < FIELD_METHODS.length; i++) {
+			outputRow[fieldPositions[i]] = FIELD_METHODS[i].read(email);
+		}
+		return outputRow;
+	}
+
+	/**
+	 * the row construction of PstInputStep.buildOutputRow()
+	 */
+	@Benchmark
+	public Object[] singleAllocation() {
+		return buildOutputRow(attachmentFieldIndex);
+	}
+
+	/**
+	 * attachment mode before: the message properties read and boxed again for each attachment
+	 */
+	@Benchmark
+	public void attachmentRowsRebuilt(Blackhole blackhole) {
+		for (Object[] attachmentValues : attachments) {
+			Object[] outputRow = buildOutputRow(outputRowSize);
+			System.arraycopy(attachmentValues, 0, outputRow, attachmentFieldIndex, attachmentValues.length);
+			blackhole.consume(outputRow);
+		}
+	}
+
+	/**
+	 * attachment mode of PstInputStep.emitMessage(): the message row is built once and copied
+	 */
+	@Benchmark
+	public void attachmentRowsCopied(Blackhole blackhole) {
+		Object[] messageRow = buildOutputRow(outputRowSize);
+		for (int i = 0; i < attachments.length; i++) {
+			Object[] outputRow = messageRow;
+			if (i < attachments.length - 1) {
+				outputRow = RowDataUtil.allocateRowData(outputRowSize);
+				System.arraycopy(messageRow, 0, outputRow, 0, attachmentFieldIndex);
+			}
+			System.arraycopy(attachments[i], 0, outputRow, attachmentFieldIndex, attachments[i].length);
+			blackhole.consume(outputRow);
+		}
+	}
+
+	private Object[] buildOutputRow(int rowSize) {
+		Object[] outputRow = RowDataUtil.allocateRowData(rowSize);
+		System.arraycopy(inputRow, 0, outputRow, 0, inputRowSize);
+		read(email, fieldPositions, outputRow);
+		return outputRow;
+	}
+
+	/**
+	 * same code as PstField.read()
+	 */
+	private static void read(Message email, int[] positions, Object[] row) {
+		int position;
+		if ((position = positions[0]) >= 0) row[position] = Long.valueOf(email.descriptorNodeId);
+		if ((position = positions[1]) >= 0) row[position] = email.folder;
+		if ((position = positions[2]) >= 0) row[position] = email.clientSubmitTime;
+		if ((position = positions[3]) >= 0) row[position] = email.subject;
+		if ((position = positions[4]) >= 0) row[position] = email.body;
+		if ((position = positions[5]) >= 0) row[position] = email.bodyHtml;
+		if ((position = positions[6]) >= 0) row[position] = email.bodyPrefix;
+		if ((position = positions[7]) >= 0) row[position] = email.senderName;
+		if ((position = positions[8]) >= 0) row[position] = email.senderEmailAddress;
+		if ((position = positions[9]) >= 0) row[position] = email.displayTo;
+		if ((position = positions[10]) >= 0) row[position] = email.displayCc;
+		if ((position = positions[11]) >= 0) row[position] = email.displayBcc;
+		if ((position = positions[12]) >= 0) row[position] = Long.valueOf(email.messageSize);
+		if ((position = positions[13]) >= 0) row[position] = Long.valueOf(email.numberOfAttachments);
+		if ((position = positions[14]) >= 0) row[position] = Long.valueOf(email.numberOfRecipients);
+		if ((position = positions[15]) >= 0) row[position] = Long.valueOf(email.importance);
+		if ((position = positions[16]) >= 0) row[position] = email.inReplyToId;
+		if ((position = positions[17]) >= 0) row[position] = email.messageClass;
+		if ((position = positions[18]) >= 0) row[position] = email.messageCcMe;
+		if ((position = positions[19]) >= 0) row[position] = email.messageToMe;
+		if ((position = positions[20]) >= 0) row[position] = email.replyRequested;
+		if ((position = positions[21]) >= 0) row[position] = email.forwarded;
+		if ((position = positions[22]) >= 0) row[position] = email.read;
+		if ((position = positions[23]) >= 0) row[position] = email.replied;
+		if ((position = positions[24]) >= 0) row[position] = email.fromMe;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(PstRowBuildingBenchmark.class.getSimpleName()).addProfiler("gc").build()).run();
+	}
+}